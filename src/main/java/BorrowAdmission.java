@@ -0,0 +1,165 @@
+import entities.Borrow;
+import queries.ApiResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission layer in front of borrowBook for books that many users
+ * borrow at the same time.
+ *
+ * Note:
+ *      (1) a borrow of a book nobody else is borrowing runs at once, on
+ *          its own. borrows that arrive while one of the same book runs
+ *          are queued for that book, and the next of them hands all of
+ *          them to the {@link BatchBorrower} at once, so the book row is
+ *          locked once per batch instead of once per borrow. no lock is
+ *          held while a batch runs, borrows of other books never wait.
+ *      (2) every borrow reaches the conditional stock update, nothing
+ *          remembers a book to be out of stock: a return or a restock in
+ *          another process is seen by the very next batch. once the stock
+ *          is out, a whole batch is refused by that one statement.
+ */
+final class BorrowAdmission {
+
+    static final String NO_STOCK = "Book does not exist or has no stock.";
+
+    /* a queued borrow, completed by whoever runs its batch */
+    static final class Pending {
+
+        final Borrow borrow;
+        private ApiResult result;
+        /* set when this borrow is to run the batch of its book */
+        private List<Pending> batch;
+
+        Pending(Borrow borrow) {
+            this.borrow = borrow;
+        }
+
+        synchronized void complete(ApiResult result) {
+            this.result = result;
+            notifyAll();
+        }
+
+        synchronized ApiResult getResult() {
+            return result;
+        }
+
+        synchronized void lead(List<Pending> batch) {
+            this.batch = batch;
+            notifyAll();
+        }
+
+        /* wait until completed, or until given a batch to run, which is returned */
+        synchronized List<Pending> await() {
+            boolean interrupted = false;
+            while (result == null && batch == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // like a lock, the borrow is not abandoned half way
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return result == null ? batch : null;
+        }
+    }
+
+    interface BatchBorrower {
+        /* borrow one book for every pending borrow of the batch, and complete each of them */
+        void borrow(int bookId, List<Pending> batch);
+    }
+
+    /* the borrows waiting for a book whose batch is running */
+    private static final class Queue {
+        private final List<Pending> waiting = new ArrayList<>();
+    }
+
+    private final BatchBorrower borrower;
+    /* book id -> queue, only while a batch of the book runs */
+    private final Map<Integer, Queue> running = new ConcurrentHashMap<>();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong batched = new AtomicLong();
+    private final AtomicLong combined = new AtomicLong();
+
+    BorrowAdmission(BatchBorrower borrower) {
+        this.borrower = borrower;
+    }
+
+    ApiResult borrow(Borrow borrow) {
+        int bookId = borrow.getBookId();
+        Pending pending = new Pending(borrow);
+        boolean[] first = new boolean[1];
+        running.compute(bookId, (k, queue) -> {
+            if (queue == null) {
+                first[0] = true;
+                return new Queue();
+            }
+            queue.waiting.add(pending);
+            return queue;
+        });
+        List<Pending> batch = first[0] ? Collections.singletonList(pending) : pending.await();
+        if (batch != null) {
+            try {
+                run(bookId, batch);
+            } finally {
+                // the first borrow of the next batch runs it
+                List<Pending> next = handOver(bookId);
+                if (next != null) {
+                    next.get(0).lead(next);
+                }
+            }
+        }
+        return pending.getResult();
+    }
+
+    /* number of batches handed to the borrower */
+    long getBatches() {
+        return batches.get();
+    }
+
+    /* number of borrows handed to the borrower */
+    long getBatched() {
+        return batched.get();
+    }
+
+    /* number of borrows that ran in a batch of more than one */
+    long getCombined() {
+        return combined.get();
+    }
+
+    private void run(int bookId, List<Pending> batch) {
+        batches.incrementAndGet();
+        batched.addAndGet(batch.size());
+        if (batch.size() > 1) {
+            combined.addAndGet(batch.size());
+        }
+        try {
+            borrower.borrow(bookId, batch);
+        } catch (RuntimeException e) {
+            for (Pending p : batch) {
+                if (p.getResult() == null) {
+                    p.complete(new ApiResult(false, e.getMessage()));
+                }
+            }
+        }
+    }
+
+    /* the next batch of the book, or null if none is waiting */
+    private List<Pending> handOver(int bookId) {
+        List<Pending> next = new ArrayList<>();
+        running.compute(bookId, (k, queue) -> {
+            next.addAll(queue.waiting);
+            queue.waiting.clear();
+            return next.isEmpty() ? null : queue;
+        });
+        return next.isEmpty() ? null : next;
+    }
+}
@@ -0,0 +1,1150 @@
+import entities.Book;
+import entities.Book.SortColumn;
+import entities.Borrow;
+import entities.Card;
+import queries.*;
+import utils.OffHeapBookStore;
+import utils.StringDictionary;
+import utils.TopN;
+import utils.TrigramIndex;
+import utils.WriteAheadLog;
+import utils.primitive.IntIntHashMap;
+import utils.primitive.IntObjectHashMap;
+import utils.primitive.LongIntHashMap;
+import utils.primitive.LongLongHashMap;
+
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * A library kept entirely in memory, with the same behaviour as
+ * {@link LibraryManagementSystemImpl} but without a database, e.g. for
+ * read-heavy kiosks and for fast test runs. selected by the "memory"
+ * database type, see {@link LibraryManagementSystem#create}.
+ *
+ * Note:
+ *      (1) every function runs under one read / write lock, so that it is
+ *          atomic like a transaction: reads share the lock, writes hold it
+ *          exclusively.
+ *      (2) books are kept off the heap in an {@link OffHeapBookStore}, a
+ *          query only decodes the books that pass its filters.
+ *      (3) the constraints of the database schema are checked here: the
+ *          unique keys of book & card, non-negative stock, one open loan
+ *          per (card, book), and removing a book or card removes its
+ *          borrow history like ON DELETE CASCADE.
+ *      (4) fuzzy filters match case & accent insensitively, like the
+ *          default collations of the databases.
+ *      (5) given a directory, every change is recorded in a write-ahead
+ *          log there and a function only returns once its records are on
+ *          disk, see {@link WriteAheadLog}. the lock is released before
+ *          waiting, so concurrent changes share one fsync, and others may
+ *          read a change shortly before it is durable. every
+ *          snapshotRecords changes the library is written as a snapshot,
+ *          so that recovery only replays the changes after it.
+ *      (6) the maps by card_id, book_id, (card_id, book_id) & unique key
+ *          hash are primitive maps, they are only touched under the lock.
+ */
+public class InMemoryLibraryManagementSystem implements LibraryManagementSystem, AutoCloseable {
+
+    /* records of the log & the snapshot, each is an op followed by its fields */
+    private static final byte END = 0;
+    private static final byte PUT_BOOK = 1;
+    private static final byte SET_STOCK = 2;
+    private static final byte REMOVE_BOOK = 3;
+    private static final byte PUT_CARD = 4;
+    private static final byte REMOVE_CARD = 5;
+    private static final byte BORROW = 6;
+    private static final byte RETURN = 7;
+    private static final byte RESET = 8;
+    /* only in snapshots */
+    private static final byte HISTORY = 9;
+    private static final byte NEXT_IDS = 10;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /* off the heap, iterated by book_id, which is the default order of queryBook */
+    private final OffHeapBookStore books = new OffHeapBookStore();
+    private final IntObjectHashMap<Card> cards = new IntObjectHashMap<>();
+    /* hash of the unique key (department, type, name) -> first card with it, card_id -> next card with it */
+    private final LongIntHashMap cardKeyHeads = new LongIntHashMap();
+    private final IntIntHashMap nextSameCardKey = new IntIntHashMap();
+    /* (card_id, book_id) -> borrow time of the books borrowed and not returned */
+    private final LongLongHashMap activeLoans = new LongLongHashMap();
+    /* number of open loans by book_id & by card_id, for removeBook & removeCard */
+    private final IntIntHashMap loansPerBook = new IntIntHashMap();
+    private final IntIntHashMap loansPerCard = new IntIntHashMap();
+    /* card_id -> borrow records of the card, in the order they were made */
+    private final IntObjectHashMap<List<Borrow>> histories = new IntObjectHashMap<>();
+    private int nextBookId = 1;
+    private int nextCardId = 1;
+    /* null if changes are not made durable */
+    private final WriteAheadLog log;
+    private final long snapshotRecords;
+    /* records of the change being made, appended to the log as one frame */
+    private final RecordBuffer journal = new RecordBuffer();
+    private boolean recovering;
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    /* set once the log could not be written, no changes are accepted afterwards */
+    private volatile IOException logFailure;
+
+    /* a library that only lives as long as the process */
+    public InMemoryLibraryManagementSystem() {
+        this.log = null;
+        this.snapshotRecords = Long.MAX_VALUE;
+    }
+
+    /* a library kept durable in dir, recovered from what is there already */
+    public InMemoryLibraryManagementSystem(Path dir, long snapshotRecords) throws IOException {
+        this.log = new WriteAheadLog(dir);
+        this.snapshotRecords = snapshotRecords > 0 ? snapshotRecords : Long.MAX_VALUE;
+        recovering = true;
+        try {
+            log.recover(this::apply, this::apply);
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        } finally {
+            recovering = false;
+        }
+    }
+
+    /**
+     * write the whole library as the snapshot and empty the log. changes
+     * wait meanwhile, queries go on.
+     */
+    public void snapshot() throws IOException {
+        if (log == null) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            log.snapshot(this::writeSnapshot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (log != null) {
+            lock.writeLock().lock();
+            try {
+                log.close();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public ApiResult storeBook(Book book) {
+        return write(() -> {
+            if (books.findByKey(book) != 0) {
+                return new ApiResult(false, "Book already exists.");
+            }
+            insertBook(book);
+            return new ApiResult(true, "Store book successfully.");
+        });
+    }
+
+    @Override
+    public ApiResult incBookStock(int bookId, int deltaStock) {
+        return write(() -> {
+            String failure = incBookStockFailure(bookId, deltaStock);
+            if (failure != null) {
+                return new ApiResult(false, failure);
+            }
+            setStock(bookId, books.getStock(bookId) + deltaStock);
+            return new ApiResult(true, "Update stock successfully.");
+        });
+    }
+
+    @Override
+    public ApiResult incBookStock(Map<Integer, Integer> deltaStocks) {
+        return write(() -> {
+            Map<Integer, Integer> sorted = new TreeMap<>(deltaStocks);
+            for (Map.Entry<Integer, Integer> entry : sorted.entrySet()) {
+                String failure = incBookStockFailure(entry.getKey(), entry.getValue());
+                if (failure != null) {
+                    return new ApiResult(false, "Book " + entry.getKey() + ": " + failure);
+                }
+            }
+            for (Map.Entry<Integer, Integer> entry : sorted.entrySet()) {
+                setStock(entry.getKey(), books.getStock(entry.getKey()) + entry.getValue());
+            }
+            return new ApiResult(true, "Update stock successfully.");
+        });
+    }
+
+    @Override
+    public ApiResult storeBook(List<Book> books) {
+        return write(() -> {
+            String failure = storeBooksFailure(books);
+            if (failure != null) {
+                return new ApiResult(false, failure);
+            }
+            books.forEach(this::insertBook);
+            return new ApiResult(true, "Store books successfully.");
+        });
+    }
+
+    @Override
+    public ApiResult importBooks(Iterator<Book> books, int chunkSize, boolean atomic) {
+        if (chunkSize <= 0) {
+            return new ApiResult(false, "Chunk size must be positive.");
+        }
+        long start = System.currentTimeMillis();
+        long committed = 0;
+        int chunks = 0;
+        // the input is read & checked without the lock, which is only taken to apply books.
+        // keys of the books read since the last commit, earlier ones are checked in the store
+        Set<List<Object>> keys = new HashSet<>();
+        // in atomic mode the books are only stored once all of them are known to be valid
+        List<Book> pending = new ArrayList<>();
+        List<Book> chunk = new ArrayList<>(chunkSize);
+        while (books.hasNext()) {
+            Book book = books.next();
+            if (!keys.add(bookKey(book))) {
+                return new ApiResult(false, "Book already exists: " + book,
+                        new IngestResult(committed, chunks, System.currentTimeMillis() - start));
+            }
+            chunk.add(book);
+            if (chunk.size() < chunkSize && books.hasNext()) {
+                continue;
+            }
+            chunks++;
+            ApiResult result;
+            if (atomic) {
+                // fail early, the books are checked again when they are stored
+                lock.readLock().lock();
+                try {
+                    String failure = storedFailure(chunk);
+                    result = new ApiResult(failure == null, failure);
+                } finally {
+                    lock.readLock().unlock();
+                }
+                pending.addAll(chunk);
+            } else {
+                // a chunk is logged & synced on its own, like a commit
+                result = write(() -> storeChunk(chunk));
+                if (result.ok) {
+                    committed += chunk.size();
+                    keys.clear();
+                }
+            }
+            if (!result.ok) {
+                return new ApiResult(false, result.message,
+                        new IngestResult(committed, chunks, System.currentTimeMillis() - start));
+            }
+            chunk.clear();
+        }
+        if (atomic && !pending.isEmpty()) {
+            ApiResult result = write(() -> storeChunk(pending));
+            if (!result.ok) {
+                return new ApiResult(false, result.message,
+                        new IngestResult(committed, chunks, System.currentTimeMillis() - start));
+            }
+            committed = pending.size();
+        }
+        return new ApiResult(true, "Import books successfully.",
+                new IngestResult(committed, chunks, System.currentTimeMillis() - start));
+    }
+
+    @Override
+    public ApiResult removeBook(int bookId) {
+        return write(() -> {
+            if (!books.contains(bookId)) {
+                return new ApiResult(false, "Book not found.");
+            }
+            if (loansPerBook.containsKey(bookId)) {
+                return new ApiResult(false, "Book is borrowed but not returned.");
+            }
+            dropBook(bookId);
+            return new ApiResult(true, "Remove book successfully.");
+        });
+    }
+
+    @Override
+    public ApiResult modifyBookInfo(Book book) {
+        return write(() -> {
+            if (!books.contains(book.getBookId())) {
+                return new ApiResult(false, "Book not found.");
+            }
+            book.setStock(books.getStock(book.getBookId()));
+            int owner = books.findByKey(book);
+            if (owner != 0 && owner != book.getBookId()) {
+                return new ApiResult(false, "Book already exists.");
+            }
+            putBook(book);
+            return new ApiResult(true, "Modify book info successfully.");
+        });
+    }
+
+    @Override
+    public ApiResult queryBook(BookQueryConditions conditions) {
+        Integer pageSize = conditions.getPageSize();
+        if (pageSize != null && pageSize <= 0) {
+            return new ApiResult(false, "Page size must be positive.");
+        }
+        List<Book> found;
+        try {
+            found = findBooks(conditions, true);
+        } catch (IllegalArgumentException e) {
+            return new ApiResult(false, e.getMessage());
+        }
+        String nextPageToken = null;
+        if (pageSize != null && found.size() > pageSize) {
+            found = found.subList(0, pageSize);
+            Book last = found.get(found.size() - 1);
+            nextPageToken = PageToken.after(last, conditions).encode();
+        }
+        if (conditions.getProjection() != null) {
+            return new ApiResult(true, "Query books successfully.",
+                    new BookQueryResults(project(found, conditions), nextPageToken));
+        }
+        return new ApiResult(true, "Query books successfully.",
+                new BookQueryResults(new ArrayList<>(found), nextPageToken));
+    }
+
+    @Override
+    public ApiResult streamBooks(BookQueryConditions conditions) {
+        List<Book> found;
+        try {
+            found = findBooks(conditions, false);
+        } catch (IllegalArgumentException e) {
+            return new ApiResult(false, e.getMessage());
+        }
+        if (conditions.getProjection() != null) {
+            return new ApiResult(true, "Open stream successfully.", project(found, conditions).asBooks().stream());
+        }
+        return new ApiResult(true, "Open stream successfully.", found.stream());
+    }
+
+    @Override
+    public ApiResult facetBooks(BookQueryConditions conditions, BookFacet... facets) {
+        BookFacets results = new BookFacets(facets);
+        lock.readLock().lock();
+        try {
+            List<Map<Object, Long>> counts = new ArrayList<>();
+            for (int i = 0; i < facets.length; i++) {
+                counts.add(new HashMap<>());
+            }
+            BookFilter filter = new BookFilter(conditions);
+            for (int bookId = books.next(0); bookId != 0; bookId = books.next(bookId)) {
+                if (filter.test(bookId)) {
+                    for (int i = 0; i < facets.length; i++) {
+                        counts.get(i).merge(facetValue(bookId, facets[i]), 1L, Long::sum);
+                    }
+                }
+            }
+            for (int i = 0; i < facets.length; i++) {
+                List<BookFacets.Bucket> buckets = results.getBuckets(facets[i]);
+                counts.get(i).forEach((value, count) -> buckets.add(new BookFacets.Bucket(value, count)));
+                buckets.sort(BUCKET_ORDER);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new ApiResult(true, "Count books successfully.", results);
+    }
+
+    @Override
+    public ApiResult borrowBook(Borrow borrow) {
+        return write(() -> {
+            if (!books.contains(borrow.getBookId()) || books.getStock(borrow.getBookId()) == 0) {
+                return new ApiResult(false, "Book does not exist or has no stock.");
+            }
+            if (!cards.containsKey(borrow.getCardId())) {
+                return new ApiResult(false, "Card does not exist.");
+            }
+            if (activeLoans.containsKey(loanKey(borrow.getCardId(), borrow.getBookId()))) {
+                return new ApiResult(false, "User has borrowed the book and not returned.");
+            }
+            openLoan(borrow.getCardId(), borrow.getBookId(), borrow.getBorrowTime());
+            return new ApiResult(true, "Borrow book successfully.");
+        });
+    }
+
+    @Override
+    public ApiResult returnBook(Borrow borrow) {
+        return write(() -> {
+            long loan = loanKey(borrow.getCardId(), borrow.getBookId());
+            if (!activeLoans.containsKey(loan)) {
+                return new ApiResult(false, "User has not borrowed the book or has returned.");
+            }
+            long borrowTime = activeLoans.get(loan);
+            if (borrow.getReturnTime() <= borrowTime) {
+                return new ApiResult(false, "Return time is earlier than borrow time.");
+            }
+            borrow.setBorrowTime(borrowTime);
+            closeLoan(borrow.getCardId(), borrow.getBookId(), borrow.getReturnTime());
+            return new ApiResult(true, "Return book successfully.");
+        });
+    }
+
+    @Override
+    public ApiResult borrowBooks(int cardId, List<Integer> bookIds, long time) {
+        Set<Integer> sorted = new TreeSet<>(bookIds);
+        if (sorted.size() != bookIds.size()) {
+            return new ApiResult(false, "A book is listed more than once.");
+        }
+        return write(() -> {
+            for (int bookId : sorted) {
+                if (!books.contains(bookId) || books.getStock(bookId) == 0) {
+                    return new ApiResult(false, "Book " + bookId + ": Book does not exist or has no stock.");
+                }
+                if (activeLoans.containsKey(loanKey(cardId, bookId))) {
+                    return new ApiResult(false, "Book " + bookId + ": User has borrowed the book and not returned.");
+                }
+            }
+            if (!sorted.isEmpty() && !cards.containsKey(cardId)) {
+                return new ApiResult(false, "Card does not exist.");
+            }
+            for (int bookId : sorted) {
+                openLoan(cardId, bookId, time);
+            }
+            return new ApiResult(true, "Borrow books successfully.");
+        });
+    }
+
+    @Override
+    public ApiResult returnBooks(int cardId, List<Integer> bookIds, long time) {
+        Set<Integer> sorted = new TreeSet<>(bookIds);
+        if (sorted.size() != bookIds.size()) {
+            return new ApiResult(false, "A book is listed more than once.");
+        }
+        return write(() -> {
+            for (int bookId : sorted) {
+                long loan = loanKey(cardId, bookId);
+                if (!activeLoans.containsKey(loan)) {
+                    return new ApiResult(false, "Book " + bookId + ": User has not borrowed the book or has returned.");
+                }
+                if (time <= activeLoans.get(loan)) {
+                    return new ApiResult(false, "Book " + bookId + ": Return time is earlier than borrow time.");
+                }
+            }
+            for (int bookId : sorted) {
+                closeLoan(cardId, bookId, time);
+            }
+            return new ApiResult(true, "Return books successfully.");
+        });
+    }
+
+    @Override
+    public ApiResult showBorrowHistory(int cardId) {
+        return new ApiResult(true, "Query borrow history successfully.", new BorrowHistories(borrowHistory(cardId)));
+    }
+
+    @Override
+    public ApiResult streamBorrowHistory(int cardId) {
+        return new ApiResult(true, "Open stream successfully.", borrowHistory(cardId).stream());
+    }
+
+    @Override
+    public ApiResult registerCard(Card card) {
+        return write(() -> {
+            if (findCard(card) != 0) {
+                return new ApiResult(false, "Card already exists.");
+            }
+            card.setCardId(nextCardId);
+            putCard(card);
+            return new ApiResult(true, "Register card successfully.");
+        });
+    }
+
+    @Override
+    public ApiResult removeCard(int cardId) {
+        return write(() -> {
+            Card card = cards.get(cardId);
+            if (card == null) {
+                return new ApiResult(false, "Card does not exist.");
+            }
+            if (loansPerCard.containsKey(cardId)) {
+                return new ApiResult(false, "Card has borrowed books and not returned.");
+            }
+            dropCard(cardId);
+            return new ApiResult(true, "Remove card successfully.");
+        });
+    }
+
+    @Override
+    public ApiResult showCards() {
+        List<Card> results = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            // by card_id
+            for (int cardId : cards.keys()) {
+                results.add(cards.get(cardId).clone());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new ApiResult(true, "Show cards successfully.", new CardList(results));
+    }
+
+    @Override
+    public ApiResult resetDatabase() {
+        ApiResult result = write(() -> {
+            clear();
+            return new ApiResult(true, null);
+        });
+        if (result.ok) {
+            // nothing before the reset is needed any more
+            snapshotQuietly();
+        }
+        return result;
+    }
+
+    @Override
+    public ApiResult migrateDatabase() {
+        // there is no stored schema to bring up to date
+        return new ApiResult(true, "Migrate database successfully.", new ArrayList<String>());
+    }
+
+    private static final Comparator<BookFacets.Bucket> BUCKET_ORDER = (lhs, rhs) -> {
+        if (lhs.getCount() != rhs.getCount()) {
+            return Long.compare(rhs.getCount(), lhs.getCount());
+        }
+        return compareValues(lhs.getValue(), rhs.getValue());
+    };
+
+    /* run a change under the write lock, then wait until its records are on disk */
+    private ApiResult write(Supplier<ApiResult> change) {
+        long position;
+        ApiResult result;
+        lock.writeLock().lock();
+        try {
+            if (logFailure != null) {
+                return new ApiResult(false, "Write-ahead log failed: " + logFailure.getMessage());
+            }
+            result = change.get();
+            position = appendJournal();
+        } catch (IOException e) {
+            // the change is applied but not logged, refuse further changes
+            logFailure = e;
+            return new ApiResult(false, "Write-ahead log failed: " + e.getMessage());
+        } finally {
+            // nothing of a failed change is logged
+            journal.clear();
+            lock.writeLock().unlock();
+        }
+        if (position > 0) {
+            try {
+                log.sync(position);
+            } catch (IOException e) {
+                logFailure = e;
+                return new ApiResult(false, "Write-ahead log failed: " + e.getMessage());
+            }
+            if (log.getRecords() >= snapshotRecords) {
+                snapshotQuietly();
+            }
+        }
+        return result;
+    }
+
+    /* append the records of the change as one frame, so that it is replayed entirely or not at all */
+    private long appendJournal() throws IOException {
+        if (journal.size() == 0) {
+            return 0;
+        }
+        journal.putByte(END);
+        try {
+            return log.append(journal.bytes(), journal.size());
+        } finally {
+            journal.clear();
+        }
+    }
+
+    /* start a record of a change, unless changes are not logged */
+    private boolean record(byte op) {
+        if (log == null || recovering) {
+            return false;
+        }
+        journal.putByte(op);
+        return true;
+    }
+
+    private void insertBook(Book book) {
+        book.setBookId(nextBookId);
+        putBook(book);
+    }
+
+    /* store a new or modified book */
+    private void putBook(Book book) {
+        books.put(book);
+        nextBookId = Math.max(nextBookId, book.getBookId() + 1);
+        if (record(PUT_BOOK)) {
+            writeBook(journal, book);
+        }
+    }
+
+    private void setStock(int bookId, int stock) {
+        restock(bookId, stock);
+        if (record(SET_STOCK)) {
+            journal.putInt(bookId);
+            journal.putInt(stock);
+        }
+    }
+
+    /* in place, readers are kept out by the write lock */
+    private void restock(int bookId, int stock) {
+        books.setStock(bookId, stock);
+    }
+
+    /* remove a book, its borrow history goes with it */
+    private void dropBook(int bookId) {
+        books.remove(bookId);
+        histories.forEach((cardId, history) -> history.removeIf(borrow -> borrow.getBookId() == bookId));
+        if (record(REMOVE_BOOK)) {
+            journal.putInt(bookId);
+        }
+    }
+
+    private void putCard(Card card) {
+        Card stored = card.clone();
+        stored.setDepartment(StringDictionary.global().intern(card.getDepartment()));
+        Card replaced = cards.put(card.getCardId(), stored);
+        if (replaced != null) {
+            unlinkCardKey(replaced);
+        }
+        int head = cardKeyHeads.put(cardKeyHash(stored), card.getCardId());
+        if (head != 0) {
+            nextSameCardKey.put(card.getCardId(), head);
+        }
+        nextCardId = Math.max(nextCardId, card.getCardId() + 1);
+        if (record(PUT_CARD)) {
+            writeCard(journal, card);
+        }
+    }
+
+    /* remove a card, its borrow history goes with it */
+    private void dropCard(int cardId) {
+        unlinkCardKey(cards.remove(cardId));
+        histories.remove(cardId);
+        if (record(REMOVE_CARD)) {
+            journal.putInt(cardId);
+        }
+    }
+
+    private void clear() {
+        books.clear();
+        cards.clear();
+        cardKeyHeads.clear();
+        nextSameCardKey.clear();
+        activeLoans.clear();
+        loansPerBook.clear();
+        loansPerCard.clear();
+        histories.clear();
+        nextBookId = 1;
+        nextCardId = 1;
+        record(RESET);
+    }
+
+    private String incBookStockFailure(int bookId, int deltaStock) {
+        if (!books.contains(bookId)) {
+            return "Book not found.";
+        }
+        return books.getStock(bookId) + deltaStock < 0 ? "Stock cannot be negative." : null;
+    }
+
+    /* why books cannot be stored, duplicates among themselves included, or null */
+    private String storeBooksFailure(List<Book> batch) {
+        Set<List<Object>> keys = new HashSet<>();
+        for (Book book : batch) {
+            if (!keys.add(bookKey(book))) {
+                return "Book already exists: " + book;
+            }
+        }
+        return storedFailure(batch);
+    }
+
+    /* why books without duplicates among themselves cannot be stored, or null */
+    private String storedFailure(List<Book> batch) {
+        for (Book book : batch) {
+            if (books.findByKey(book) != 0) {
+                return "Book already exists: " + book;
+            }
+        }
+        return null;
+    }
+
+    /* store books checked for duplicates among themselves, under the write lock */
+    private ApiResult storeChunk(List<Book> batch) {
+        String failure = storedFailure(batch);
+        if (failure != null) {
+            return new ApiResult(false, failure);
+        }
+        batch.forEach(this::insertBook);
+        return new ApiResult(true, "Store books successfully.");
+    }
+
+    private void openLoan(int cardId, int bookId, long time) {
+        restock(bookId, books.getStock(bookId) - 1);
+        addHistory(cardId, bookId, time, 0);
+        if (record(BORROW)) {
+            journal.putInt(cardId);
+            journal.putInt(bookId);
+            journal.putLong(time);
+        }
+    }
+
+    private void closeLoan(int cardId, int bookId, long time) {
+        long borrowTime = activeLoans.remove(loanKey(cardId, bookId));
+        if (loansPerBook.addTo(bookId, -1) == 0) {
+            loansPerBook.remove(bookId);
+        }
+        if (loansPerCard.addTo(cardId, -1) == 0) {
+            loansPerCard.remove(cardId);
+        }
+        for (Borrow borrow : histories.get(cardId)) {
+            if (borrow.getBookId() == bookId && borrow.getBorrowTime() == borrowTime && borrow.getReturnTime() == 0) {
+                borrow.setReturnTime(time);
+            }
+        }
+        restock(bookId, books.getStock(bookId) + 1);
+        if (record(RETURN)) {
+            journal.putInt(cardId);
+            journal.putInt(bookId);
+            journal.putLong(time);
+        }
+    }
+
+    /* a borrow record, and an open loan if it is not returned, the stock is left alone */
+    private void addHistory(int cardId, int bookId, long borrowTime, long returnTime) {
+        Borrow borrow = new Borrow(cardId, bookId);
+        borrow.setBorrowTime(borrowTime);
+        borrow.setReturnTime(returnTime);
+        histories.computeIfAbsent(cardId, k -> new ArrayList<>()).add(borrow);
+        if (returnTime == 0) {
+            activeLoans.put(loanKey(cardId, bookId), borrowTime);
+            loansPerBook.addTo(bookId, 1);
+            loansPerCard.addTo(cardId, 1);
+        }
+    }
+
+    /* replay the records of one frame of the log, or of the snapshot */
+    private void apply(DataInput in) throws IOException {
+        byte op;
+        while ((op = in.readByte()) != END) {
+            switch (op) {
+                case PUT_BOOK:
+                    putBook(readBook(in));
+                    break;
+                case SET_STOCK:
+                    setStock(in.readInt(), in.readInt());
+                    break;
+                case REMOVE_BOOK:
+                    dropBook(in.readInt());
+                    break;
+                case PUT_CARD:
+                    putCard(readCard(in));
+                    break;
+                case REMOVE_CARD:
+                    dropCard(in.readInt());
+                    break;
+                case BORROW:
+                    openLoan(in.readInt(), in.readInt(), in.readLong());
+                    break;
+                case RETURN:
+                    closeLoan(in.readInt(), in.readInt(), in.readLong());
+                    break;
+                case RESET:
+                    clear();
+                    break;
+                case HISTORY:
+                    addHistory(in.readInt(), in.readInt(), in.readLong(), in.readLong());
+                    break;
+                case NEXT_IDS:
+                    nextBookId = in.readInt();
+                    nextCardId = in.readInt();
+                    break;
+                default:
+                    throw new IOException("Unknown log record " + op + ".");
+            }
+        }
+    }
+
+    /* the whole library as records, the counters last so that removed ids are not reused */
+    private void writeSnapshot(DataOutputStream out) throws IOException {
+        RecordBuffer buffer = new RecordBuffer();
+        for (int bookId = books.next(0); bookId != 0; bookId = books.next(bookId)) {
+            buffer.putByte(PUT_BOOK);
+            writeBook(buffer, books.get(bookId));
+            buffer.drainTo(out);
+        }
+        for (int cardId : cards.keys()) {
+            buffer.putByte(PUT_CARD);
+            writeCard(buffer, cards.get(cardId));
+            buffer.drainTo(out);
+        }
+        for (int cardId : histories.keys()) {
+            for (Borrow borrow : histories.get(cardId)) {
+                buffer.putByte(HISTORY);
+                buffer.putInt(borrow.getCardId());
+                buffer.putInt(borrow.getBookId());
+                buffer.putLong(borrow.getBorrowTime());
+                buffer.putLong(borrow.getReturnTime());
+                buffer.drainTo(out);
+            }
+        }
+        buffer.putByte(NEXT_IDS);
+        buffer.putInt(nextBookId);
+        buffer.putInt(nextCardId);
+        buffer.putByte(END);
+        buffer.drainTo(out);
+    }
+
+    private void snapshotQuietly() {
+        if (!snapshotting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            snapshot();
+        } catch (IOException e) {
+            // the log still holds every change, the next snapshot tries again
+            e.printStackTrace();
+        } finally {
+            snapshotting.set(false);
+        }
+    }
+
+    private static void writeBook(RecordBuffer out, Book book) {
+        out.putInt(book.getBookId());
+        out.putString(book.getCategory());
+        out.putString(book.getTitle());
+        out.putString(book.getPress());
+        out.putInt(book.getPublishYear());
+        out.putString(book.getAuthor());
+        out.putDouble(book.getPrice());
+        out.putInt(book.getStock());
+    }
+
+    private static Book readBook(DataInput in) throws IOException {
+        Book book = new Book();
+        book.setBookId(in.readInt());
+        book.setCategory(readString(in));
+        book.setTitle(readString(in));
+        book.setPress(readString(in));
+        book.setPublishYear(in.readInt());
+        book.setAuthor(readString(in));
+        book.setPrice(in.readDouble());
+        book.setStock(in.readInt());
+        return book;
+    }
+
+    private static void writeCard(RecordBuffer out, Card card) {
+        out.putInt(card.getCardId());
+        out.putString(card.getName());
+        out.putString(card.getDepartment());
+        out.putByte((byte) card.getType().ordinal());
+    }
+
+    private static Card readCard(DataInput in) throws IOException {
+        return new Card(in.readInt(), readString(in), readString(in), Card.CardType.values()[in.readByte()]);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* growable buffer the records of a change are encoded into */
+    private static final class RecordBuffer {
+
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        void putByte(byte value) {
+            ensure(1);
+            bytes[size++] = value;
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void putLong(long value) {
+            putInt((int) (value >>> 32));
+            putInt((int) value);
+        }
+
+        void putDouble(double value) {
+            putLong(Double.doubleToLongBits(value));
+        }
+
+        /* length & UTF-8 bytes, readable by readString, a length of -1 for null */
+        void putString(String value) {
+            if (value == null) {
+                putInt(-1);
+                return;
+            }
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            putInt(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size, utf8.length);
+            size += utf8.length;
+        }
+
+        byte[] bytes() {
+            return bytes;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void drainTo(DataOutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+            size = 0;
+        }
+
+        private void ensure(int length) {
+            if (size + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + length, bytes.length * 2));
+            }
+        }
+    }
+
+    /* borrow time desc, book id asc */
+    private List<BorrowHistories.Item> borrowHistory(int cardId) {
+        List<BorrowHistories.Item> items = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            List<Borrow> history = histories.get(cardId);
+            if (history != null) {
+                for (Borrow borrow : history) {
+                    items.add(new BorrowHistories.Item(cardId, books.get(borrow.getBookId()), borrow));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        items.sort(Comparator.comparingLong(BorrowHistories.Item::getBorrowTime).reversed()
+                .thenComparingInt(BorrowHistories.Item::getBookId));
+        return items;
+    }
+
+    /**
+     * the books matching conditions in the order asked for. if paged, the
+     * page after conditions.pageToken and one more book, to tell whether
+     * there is a next page. the books are decoded copies.
+     */
+    private List<Book> findBooks(BookQueryConditions conditions, boolean paged) {
+        if (conditions.getLimit() != null && conditions.getLimit() <= 0) {
+            throw new IllegalArgumentException("Limit must be positive.");
+        }
+        Comparator<Book> order = bookOrder(conditions);
+        Integer limit = conditions.getLimit();
+        PageToken token = null;
+        if (paged && conditions.getPageToken() != null) {
+            token = PageToken.decode(conditions.getPageToken());
+            if (token.getSortBy() != conditions.getSortBy() || token.getSortOrder() != conditions.getSortOrder()) {
+                throw new IllegalArgumentException("Page token does not match the sort order.");
+            }
+            // the limit counts over all pages, the token carries what is left of it
+            limit = token.getRemaining();
+        }
+        int rows = Integer.MAX_VALUE;
+        if (paged && conditions.getPageSize() != null) {
+            rows = conditions.getPageSize() + 1;
+        }
+        if (limit != null) {
+            rows = Math.min(rows, limit);
+        }
+        List<Book> found = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            BookFilter filter = new BookFilter(conditions);
+            for (int bookId = books.next(0); bookId != 0; bookId = books.next(bookId)) {
+                // only the books that pass the filter are decoded
+                if (filter.test(bookId)) {
+                    Book book = books.get(bookId);
+                    if (token == null || isAfter(book, token)) {
+                        found.add(book);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        // only the first rows are ordered when there is a bound
+        if (rows < found.size()) {
+            return TopN.of(found, rows, order);
+        }
+        found.sort(order);
+        return found;
+    }
+
+    /* the filters of a query, with the text folded & the category encoded once per query */
+    private final class BookFilter {
+
+        private final BookQueryConditions conditions;
+        private final int category;
+        private final String title;
+        private final String press;
+        private final String author;
+
+        BookFilter(BookQueryConditions conditions) {
+            this.conditions = conditions;
+            this.category = StringDictionary.global().code(conditions.getCategory());
+            this.title = conditions.getTitle() == null ? null : TrigramIndex.fold(conditions.getTitle());
+            this.press = conditions.getPress() == null ? null : TrigramIndex.fold(conditions.getPress());
+            this.author = conditions.getAuthor() == null ? null : TrigramIndex.fold(conditions.getAuthor());
+        }
+
+        /* the cheap fixed-width fields first, text only if they pass */
+        boolean test(int bookId) {
+            return (conditions.getCategory() == null || category >= 0 && books.getCategoryCode(bookId) == category)
+                    && (conditions.getMinPublishYear() == null || books.getPublishYear(bookId) >= conditions.getMinPublishYear())
+                    && (conditions.getMaxPublishYear() == null || books.getPublishYear(bookId) <= conditions.getMaxPublishYear())
+                    && (conditions.getMinPrice() == null || books.getPrice(bookId) >= conditions.getMinPrice())
+                    && (conditions.getMaxPrice() == null || books.getPrice(bookId) <= conditions.getMaxPrice())
+                    && (press == null || books.getFoldedPress(bookId).contains(press))
+                    && (author == null || books.getFoldedAuthor(bookId).contains(author))
+                    && (title == null || books.getFoldedTitle(bookId).contains(title));
+        }
+    }
+
+    /* the sort column in the sort order, then book_id ascending */
+    private static Comparator<Book> bookOrder(BookQueryConditions conditions) {
+        Comparator<Book> order = conditions.getSortBy().getComparator();
+        if (conditions.getSortOrder() == SortOrder.DESC) {
+            order = order.reversed();
+        }
+        return order.thenComparingInt(Book::getBookId);
+    }
+
+    /* whether book comes after the last book of the previous page */
+    private static boolean isAfter(Book book, PageToken token) {
+        int c = compareValues(PageToken.valueOf(book, token.getSortBy()), token.getLastValue());
+        if (token.getSortOrder() == SortOrder.DESC) {
+            c = -c;
+        }
+        return c != 0 ? c > 0 : book.getBookId() > token.getLastBookId();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object lhs, Object rhs) {
+        return ((Comparable<Object>) lhs).compareTo(rhs);
+    }
+
+    /* the projected columns of books, book_id & the sort column included */
+    private static BookRows project(List<Book> books, BookQueryConditions conditions) {
+        Set<SortColumn> columns = EnumSet.copyOf(conditions.getProjection());
+        columns.add(SortColumn.BOOK_ID);
+        columns.add(conditions.getSortBy());
+        BookRows rows = new BookRows(columns);
+        for (Book book : books) {
+            int row = rows.addRow();
+            for (SortColumn column : columns) {
+                Object value = PageToken.valueOf(book, column);
+                if (BookRows.isInt(column)) {
+                    rows.setInt(row, column, (Integer) value);
+                } else if (BookRows.isDouble(column)) {
+                    rows.setDouble(row, column, (Double) value);
+                } else {
+                    rows.setString(row, column, (String) value);
+                }
+            }
+        }
+        return rows;
+    }
+
+    private Object facetValue(int bookId, BookFacet facet) {
+        switch (facet) {
+            case CATEGORY:
+                return books.getCategory(bookId);
+            case PRESS:
+                return books.getPress(bookId);
+            case AUTHOR:
+                return books.getAuthor(bookId);
+            case PUBLISH_YEAR:
+                return books.getPublishYear(bookId);
+        }
+        throw new IllegalArgumentException("Unknown facet.");
+    }
+
+    private static List<Object> bookKey(Book book) {
+        return Arrays.asList(book.getCategory(), book.getPress(), book.getAuthor(), book.getTitle(), book.getPublishYear());
+    }
+
+    /* the card_id of the stored card with the unique key of card, or 0 */
+    private int findCard(Card card) {
+        for (int cardId = cardKeyHeads.get(cardKeyHash(card)); cardId != 0; cardId = nextSameCardKey.get(cardId)) {
+            Card stored = cards.get(cardId);
+            if (Objects.equals(stored.getDepartment(), card.getDepartment()) && stored.getType() == card.getType()
+                    && Objects.equals(stored.getName(), card.getName())) {
+                return cardId;
+            }
+        }
+        return 0;
+    }
+
+    /* remove a stored card from the chain of its key hash */
+    private void unlinkCardKey(Card card) {
+        long hash = cardKeyHash(card);
+        int cardId = card.getCardId();
+        int next = nextSameCardKey.remove(cardId);
+        int head = cardKeyHeads.get(hash);
+        if (head == cardId) {
+            if (next == 0) {
+                cardKeyHeads.remove(hash);
+            } else {
+                cardKeyHeads.put(hash, next);
+            }
+            return;
+        }
+        for (int id = head; id != 0; id = nextSameCardKey.get(id)) {
+            if (nextSameCardKey.get(id) == cardId) {
+                if (next == 0) {
+                    nextSameCardKey.remove(id);
+                } else {
+                    nextSameCardKey.put(id, next);
+                }
+                return;
+            }
+        }
+    }
+
+    /* hash of the unique key (department, type, name), equal cards hash alike */
+    private static long cardKeyHash(Card card) {
+        long h = Objects.hashCode(card.getDepartment());
+        h = h * 0x9E3779B97F4A7C15L + (card.getType() == null ? -1 : card.getType().ordinal());
+        h = h * 0x9E3779B97F4A7C15L + Objects.hashCode(card.getName());
+        return h ^ (h >>> 29);
+    }
+
+    private static long loanKey(int cardId, int bookId) {
+        return (long) cardId << 32 | (bookId & 0xFFFFFFFFL);
+    }
+}
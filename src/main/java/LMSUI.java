@@ -13,6 +13,7 @@ import queries.BookQueryConditions;
 import queries.BookQueryResults;
 import queries.BorrowHistories;
 import queries.CardList;
+import queries.IngestResult;
 import queries.BorrowHistories.Item;
 
 import java.awt.*;
@@ -23,6 +24,7 @@ import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Set;
@@ -30,6 +32,10 @@ import java.util.logging.Logger;
 
 public class LMSUI {
     
+    /* books sent to database per batch when importing a file */
+    private static final int IMPORT_CHUNK_SIZE = 1000;
+    private static final int IMPORT_PREVIEW_ROWS = 1000;
+
     private final LibraryManagementSystem library;
     private static final Logger log = Logger.getLogger(Main.class.getName());
     private final JPanel homePanel = new JPanel();
@@ -39,7 +45,7 @@ public class LMSUI {
     private final JFrame frame = new JFrame("Library Management System");
 
     LMSUI(DatabaseConnector connector) {
-        this.library = new LibraryManagementSystemImpl(connector);
+        this.library = LibraryManagementSystem.create(connector);
         
         // TEST CODE
         library.resetDatabase();
@@ -879,65 +885,20 @@ public class LMSUI {
             if (result == JFileChooser.APPROVE_OPTION) {
                 File file = fileChooser.getSelectedFile();
                 try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                    String line;
-                    List<Book> books = new ArrayList<>();
-                    while ((line = reader.readLine()) != null) {
-                        String[] bookInfo = line.split(",");
-                        if (bookInfo.length != 7) {
-                            JOptionPane.showMessageDialog(null, "Invalid book info", "Error", JOptionPane.ERROR_MESSAGE);
-                            return;
-                        }
-                        for (String info : bookInfo) {
-                            if (info == null || info.trim().isEmpty()) {
-                                JOptionPane.showMessageDialog(null, "Invalid book info", "Error", JOptionPane.ERROR_MESSAGE);
-                                return;
-                            }
+                    // stream the file into the database, only the first rows are kept for the table
+                    List<Book> preview = new ArrayList<>();
+                    Iterator<Book> books = reader.lines().map(line -> {
+                        Book book = parseBook(line);
+                        if (preview.size() < IMPORT_PREVIEW_ROWS) {
+                            preview.add(book);
                         }
-                        Book book = new Book();
-                        book.setCategory(bookInfo[0].trim());
-                        book.setTitle(bookInfo[1].trim());
-                        book.setPress(bookInfo[2].trim());
-                        try {
-                            int publishYearInt = Integer.parseInt(bookInfo[3].trim());
-                            if (publishYearInt < 0) {
-                                JOptionPane.showMessageDialog(null, "Publish year must be a positive number", "Error", JOptionPane.ERROR_MESSAGE);
-                                return;
-                            }
-                            book.setPublishYear(publishYearInt);
-                        } catch (NumberFormatException ex) {
-                            JOptionPane.showMessageDialog(null, "Publish year must be a number", "Error", JOptionPane.ERROR_MESSAGE);
-                            return;
-                        }
-                        book.setAuthor(bookInfo[4].trim());
-                        try {
-                            double priceDouble = Double.parseDouble(bookInfo[5].trim());
-                            if (priceDouble < 0) {
-                                JOptionPane.showMessageDialog(null, "Price must be a positive number", "Error", JOptionPane.ERROR_MESSAGE);
-                                return;
-                            }
-                            book.setPrice(priceDouble);
-                        } catch (NumberFormatException ex) {
-                            JOptionPane.showMessageDialog(null, "Price must be a number", "Error", JOptionPane.ERROR_MESSAGE);
-                            return;
-                        }
-                        try {
-                            int stockInt = Integer.parseInt(bookInfo[6].trim());
-                            if (stockInt < 0) {
-                                JOptionPane.showMessageDialog(null, "Stock must be a positive number", "Error", JOptionPane.ERROR_MESSAGE);
-                                return;
-                            }
-                            book.setStock(stockInt);
-                        } catch (NumberFormatException ex) {
-                            JOptionPane.showMessageDialog(null, "Stock must be a number", "Error", JOptionPane.ERROR_MESSAGE);
-                            return;
-                        }
-                        books.add(book);
-                    }
-                    ApiResult res = library.storeBook(books);
+                        return book;
+                    }).iterator();
+                    ApiResult res = library.importBooks(books, IMPORT_CHUNK_SIZE, true);
                     if (res.ok) {
-                        Object[][] data = new Object[books.size()][8];
-                        for (int i = 0; i < books.size(); i++) {
-                            Book book = books.get(i);
+                        Object[][] data = new Object[preview.size()][8];
+                        for (int i = 0; i < preview.size(); i++) {
+                            Book book = preview.get(i);
                             data[i][0] = book.getBookId();
                             data[i][1] = book.getCategory();
                             data[i][2] = book.getTitle();
@@ -948,7 +909,10 @@ public class LMSUI {
                             data[i][7] = book.getStock();
                         }
                         bookTableModel.setDataVector(data, bookTableColumnNames);
-                        JOptionPane.showMessageDialog(null, "Import successfully, The imported books information will show in the table.", "Success", JOptionPane.INFORMATION_MESSAGE);
+                        IngestResult ingest = (IngestResult) res.payload;
+                        JOptionPane.showMessageDialog(null, String.format("Import %d books successfully (%.0f books/s), " +
+                                "the first %d imported books will show in the table.", ingest.getRows(),
+                                ingest.getRowsPerSecond(), preview.size()), "Success", JOptionPane.INFORMATION_MESSAGE);
                     } else {
                         JOptionPane.showMessageDialog(null, res.message, "Error", JOptionPane.ERROR_MESSAGE);
                     }
@@ -964,6 +928,52 @@ public class LMSUI {
         bookInfoPanel.add(bookTablePanel);
     }
 
+    /* parse one "category,title,press,publish_year,author,price,stock" line of an import file */
+    private static Book parseBook(String line) {
+        String[] bookInfo = line.split(",");
+        if (bookInfo.length != 7) {
+            throw new IllegalArgumentException("Invalid book info");
+        }
+        for (String info : bookInfo) {
+            if (info == null || info.trim().isEmpty()) {
+                throw new IllegalArgumentException("Invalid book info");
+            }
+        }
+        Book book = new Book();
+        book.setCategory(bookInfo[0].trim());
+        book.setTitle(bookInfo[1].trim());
+        book.setPress(bookInfo[2].trim());
+        try {
+            int publishYearInt = Integer.parseInt(bookInfo[3].trim());
+            if (publishYearInt < 0) {
+                throw new IllegalArgumentException("Publish year must be a positive number");
+            }
+            book.setPublishYear(publishYearInt);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Publish year must be a number");
+        }
+        book.setAuthor(bookInfo[4].trim());
+        try {
+            double priceDouble = Double.parseDouble(bookInfo[5].trim());
+            if (priceDouble < 0) {
+                throw new IllegalArgumentException("Price must be a positive number");
+            }
+            book.setPrice(priceDouble);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Price must be a number");
+        }
+        try {
+            int stockInt = Integer.parseInt(bookInfo[6].trim());
+            if (stockInt < 0) {
+                throw new IllegalArgumentException("Stock must be a positive number");
+            }
+            book.setStock(stockInt);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Stock must be a number");
+        }
+        return book;
+    }
+
     private void createCardPanel() {
         cardPanel.setBackground(Color.WHITE);
         cardPanel.setLayout(new BorderLayout());
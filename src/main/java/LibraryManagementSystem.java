@@ -2,10 +2,18 @@ import entities.Book;
 import entities.Borrow;
 import entities.Card;
 import queries.ApiResult;
+import queries.BookFacet;
 import queries.BookQueryConditions;
+import utils.ConnectConfig;
+import utils.DatabaseConnector;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.sql.PreparedStatement;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Note:
@@ -23,6 +31,28 @@ import java.util.List;
  */
 public interface LibraryManagementSystem {
 
+    /**
+     * the library of the configured database type: kept in memory for
+     * the "memory" type, made durable in data_dir if one is configured,
+     * otherwise stored in the database of connector.
+     *
+     * @throws UncheckedIOException if the library in data_dir cannot be recovered
+     */
+    static LibraryManagementSystem create(DatabaseConnector connector) {
+        ConnectConfig conf = connector.getConf();
+        if (!conf.getType().isInMemory()) {
+            return new LibraryManagementSystemImpl(connector);
+        }
+        if (conf.getDataDir() == null) {
+            return new InMemoryLibraryManagementSystem();
+        }
+        try {
+            return new InMemoryLibraryManagementSystem(Paths.get(conf.getDataDir()), conf.getSnapshotRecords());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     /* Interface for books */
 
     /**
@@ -51,6 +81,16 @@ public interface LibraryManagementSystem {
      */
     ApiResult incBookStock(int bookId, int deltaStock);
 
+    /**
+     * apply a whole delivery manifest of stock changes in one transaction.
+     *
+     * Note that if any book does not exist or any stock would become
+     * negative, none of the changes should be applied.
+     *
+     * @param deltaStocks book_id --> deltaStock
+     */
+    ApiResult incBookStock(Map<Integer, Integer> deltaStocks);
+
     /**
      * batch store books.
      *
@@ -69,6 +109,27 @@ public interface LibraryManagementSystem {
      */
     ApiResult storeBook(List<Book> books);
 
+    /**
+     * import books from a stream without holding all of them in memory.
+     *
+     * Note that:
+     *      (1) books are written in chunks of chunkSize rows, each chunk
+     *          is sent as one batch.
+     *      (2) if atomic is true, either all books are committed at the end
+     *          or none of them; otherwise every chunk is committed on its
+     *          own and a failure only rolls back the chunk it happened in.
+     *      (3) book_id is stored to each book once its chunk is written.
+     *
+     * @param books books to be stored, e.g. list.iterator() or stream.iterator()
+     * @param chunkSize number of books sent to database per batch
+     * @param atomic all-or-nothing if true, commit per chunk if false
+     *
+     * @return the number of rows committed and the throughput are returned by
+     *         ApiResult.payload as an instance of {@link queries.IngestResult},
+     *         even if the import fails half way
+     */
+    ApiResult importBooks(Iterator<Book> books, int chunkSize, boolean atomic);
+
     /**
      * remove this book from library system.
      *
@@ -99,6 +160,13 @@ public interface LibraryManagementSystem {
      *          the risk of SQL injection attack.
      *      (3) [*] if all else is equal, sort by book_id in
      *          ascending order!
+     *      (4) if conditions.pageSize is set, at most pageSize books
+     *          are returned, and BookQueryResults.nextPageToken is set
+     *          if there are more. pages are located by a keyset seek on
+     *          (sort column, book_id) rather than an offset.
+     *      (5) if conditions.limit is set, at most limit books are
+     *          returned, the database stops after them. a paged query
+     *          returns at most limit books over all of its pages.
      *
      * @param conditions query conditions
      *
@@ -107,6 +175,38 @@ public interface LibraryManagementSystem {
      */
     ApiResult queryBook(BookQueryConditions conditions);
 
+    /**
+     * same as queryBook, but the matching books are read from the database
+     * lazily while the stream is consumed instead of being collected into
+     * a list, so memory stays flat however many books match.
+     *
+     * Note that:
+     *      (1) the stream holds a database connection until it is closed,
+     *          so always close it, e.g. with try-with-resources.
+     *      (2) conditions.pageSize and conditions.pageToken are ignored.
+     *
+     * @param conditions query conditions
+     *
+     * @return an instance of {@link java.util.stream.Stream}&lt;Book&gt;
+     *         should be returned by ApiResult.payload
+     */
+    ApiResult streamBooks(BookQueryConditions conditions);
+
+    /**
+     * count the books matching the conditions by each of the facets,
+     * e.g. how many of them there are per category, in one query.
+     * the books themselves are never read into memory.
+     *
+     * Note that the sorting & paging fields of conditions are ignored.
+     *
+     * @param conditions query conditions, same as queryBook
+     * @param facets attributes to count the books by
+     *
+     * @return the counts should be returned by ApiResult.payload
+     *         and should be an instance of {@link queries.BookFacets}
+     */
+    ApiResult facetBooks(BookQueryConditions conditions, BookFacet... facets);
+
     /* Interface for borrow & return books */
 
     /**
@@ -127,6 +227,32 @@ public interface LibraryManagementSystem {
      */
     ApiResult returnBook(Borrow borrow);
 
+    /**
+     * a user checks out several books at once with the specific card,
+     * in one transaction.
+     *
+     * Note that if any book cannot be borrowed (see borrowBook) or is
+     * listed twice, none of the books should be borrowed.
+     *
+     * @param cardId borrower's card_id
+     * @param bookIds book_id of every book to borrow
+     * @param time borrow time
+     */
+    ApiResult borrowBooks(int cardId, List<Integer> bookIds, long time);
+
+    /**
+     * a user returns several books at once with the specific card,
+     * in one transaction.
+     *
+     * Note that if any book cannot be returned (see returnBook) or is
+     * listed twice, none of the books should be returned.
+     *
+     * @param cardId borrower's card_id
+     * @param bookIds book_id of every book to return
+     * @param time return time
+     */
+    ApiResult returnBooks(int cardId, List<Integer> bookIds, long time);
+
     /**
      * list all borrow histories for a specific card.
      * the returned records should be sorted by borrow_time DESC, book_id ASC
@@ -137,6 +263,18 @@ public interface LibraryManagementSystem {
      */
     ApiResult showBorrowHistory(int cardId);
 
+    /**
+     * same as showBorrowHistory, but the records are read from the database
+     * lazily while the stream is consumed. the stream holds a database
+     * connection until it is closed.
+     *
+     * @param cardId show which card's borrow history
+     *
+     * @return an instance of {@link java.util.stream.Stream}&lt;BorrowHistories.Item&gt;
+     *         should be returned by ApiResult.payload
+     */
+    ApiResult streamBorrowHistory(int cardId);
+
     /**
      * create a new borrow card. do nothing and return failed if
      * the card already exists.
@@ -172,4 +310,17 @@ public interface LibraryManagementSystem {
      */
     ApiResult resetDatabase();
 
+    /**
+     * bring an existing database up to the current schema without losing
+     * its data, e.g. create the active loans table and the secondary
+     * indexes that resetDatabase creates on a fresh database. indexes
+     * are built online where the database supports it, so the library
+     * stays usable meanwhile. running it again on an up-to-date database
+     * does nothing.
+     *
+     * @return the names of the created tables & indexes should be returned
+     *         by ApiResult.payload as a List&lt;String&gt;
+     */
+    ApiResult migrateDatabase();
+
 }
@@ -4,543 +4,1730 @@ import entities.Card;
 import entities.Book.SortColumn;
 import entities.Card.CardType;
 import queries.*;
+import utils.BookCache;
+import utils.BulkLoader;
 import utils.DBInitializer;
 import utils.DatabaseConnector;
+import utils.IndexDefinition;
+import utils.ResultCache;
+import utils.StringDictionary;
+import utils.TopN;
+import utils.TrigramIndex;
+import utils.primitive.IntHashSet;
 
 import java.sql.*;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class LibraryManagementSystemImpl implements LibraryManagementSystem {
 
+    private static final String INSERT_BOOK = "INSERT INTO book (category, title, press, publish_year, author, price, stock) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    /* rows per multi-row insert, keeps SQL Server below its 2100 parameter limit. a power of two,
+       the rest is split into smaller powers of two so that few texts are prepared */
+    private static final int OUTPUT_INSERT_ROWS = 256;
+
+    private static final String INSERT_ACTIVE_LOAN = "INSERT INTO active_loan (card_id, book_id, borrow_time) VALUES (?, ?, ?)";
+    private static final String DELETE_ACTIVE_LOAN = "DELETE FROM active_loan WHERE card_id = ? AND book_id = ?";
+    /* the record of a loan goes to the history once it is returned, so borrow is only appended to */
+    private static final String INSERT_RETURNED_BORROW = "INSERT INTO borrow (card_id, book_id, borrow_time, return_time) VALUES (?, ?, ?, ?)";
+
+    // inquire borrow history, borrow time desc, book id asc: the returned loans & the open ones, parameters: card id twice
+    private static final String BORROW_HISTORY_SQL =
+            "SELECT h.card_id, h.book_id, h.borrow_time, h.return_time, " +
+            "book.category, book.title, book.press, book.publish_year, book.author, book.price " +
+            "FROM (SELECT card_id, book_id, borrow_time, return_time FROM borrow WHERE card_id = ? " +
+            "UNION ALL SELECT card_id, book_id, borrow_time, 0 FROM active_loan WHERE card_id = ?) h, book " +
+            "WHERE h.book_id = book.book_id " +
+            "ORDER BY h.borrow_time DESC, h.book_id ASC";
+
+    /* fields of the fuzzy search index */
+    private static final int INDEX_TITLE = 0;
+    private static final int INDEX_PRESS = 1;
+    private static final int INDEX_AUTHOR = 2;
+    /* more candidates than this are left to the LIKE scan, a longer IN list would not pay off */
+    private static final int MAX_INDEX_CANDIDATES = 1000;
+
+    /*
+     * shape of a book query, as bits:
+     *      0-7     which of the 8 filters are set
+     *      8       whether a page token is given
+     *      9-12    sort column, ordinal + 1
+     *      13-14   sort order, ordinal + 1
+     *      15      whether the number of rows is limited
+     *      16-19   log2 of the IN list length + 1, 0 if no candidates
+     *      20-23   facets, for facetBooks
+     *      24-31   projected columns by SortColumn ordinal, 0 for all columns
+     */
+    private static final long SHAPE_PAGE_TOKEN = 1L << 8;
+    private static final int SHAPE_SORT_BY = 9;
+    private static final int SHAPE_SORT_ORDER = 13;
+    private static final long SHAPE_LIMIT = 1L << 15;
+    private static final int SHAPE_IN_LIST = 16;
+    private static final long SHAPE_FACET = 1L << 20;
+    private static final int SHAPE_PROJECTION = 24;
+    private static final String[] FILTER_SQL = {
+            " AND category = ?", " AND title LIKE ?", " AND press LIKE ?", " AND publish_year >= ?",
+            " AND publish_year <= ?", " AND author LIKE ?", " AND price >= ?", " AND price <= ?"
+    };
+
     private final DatabaseConnector connector;
+    /* category, press, author & department values are interned through it, they repeat across rows */
+    private final StringDictionary dictionary = StringDictionary.global();
+    /* guarded insert of an active loan, in the dialect of the database */
+    private final String activeLoanInsertSql;
+    /* trigram index of title, press & author, assumes this is the only writer of the book table */
+    private final TrigramIndex searchIndex = new TrigramIndex(3, INDEX_PRESS, INDEX_AUTHOR);
+    /* books by book_id, every committed change of a book invalidates its entry */
+    private final BookCache bookCache;
+    /* bumped after every committed change of the book table made here, query results are cached per version.
+       changes of other processes are not counted, the cache is off unless configured, see ConnectConfig */
+    private final AtomicLong catalogueVersion = new AtomicLong();
+    private final ResultCache<String, CachedQuery> queryCache;
+    /* SQL of book queries & facet counts by shape, see SHAPE_* */
+    private final Map<Long, String> sqlTemplates = new ConcurrentHashMap<>();
+    /* combines concurrent borrows of a book, see borrowBatch */
+    private final BorrowAdmission admission = new BorrowAdmission(this::borrowBatch);
 
     public LibraryManagementSystemImpl(DatabaseConnector connector) {
         this.connector = connector;
+        this.activeLoanInsertSql = "INSERT INTO active_loan (card_id, book_id, borrow_time) SELECT ?, ?, ?" +
+                connector.getConf().getType().fromDual() +
+                " WHERE NOT EXISTS (SELECT 1 FROM active_loan WHERE card_id = ? AND book_id = ?)";
+        this.bookCache = new BookCache(connector.getConf().getBookCacheSize());
+        this.queryCache = new ResultCache<>(connector.getConf().getQueryCacheRows(),
+                connector.getConf().getQueryCacheTtl(), cached -> cached.results.getCount());
+    }
+
+    public BookCache getBookCache() {
+        return bookCache;
+    }
+
+    public ResultCache<String, ?> getQueryCache() {
+        return queryCache;
+    }
+
+    BorrowAdmission getAdmission() {
+        return admission;
     }
 
     @Override
     public ApiResult storeBook(Book book) {
-        Connection conn = connector.getConn();
-        try {
-            PreparedStatement stmt = conn.prepareStatement("INSERT INTO book (category, title, press, publish_year, author, price, stock) VALUES (?, ?, ?, ?, ?, ?, ?)");
-            stmt.setString(1, book.getCategory());
-            stmt.setString(2, book.getTitle());
-            stmt.setString(3, book.getPress());
-            stmt.setInt(4, book.getPublishYear());
-            stmt.setString(5, book.getAuthor());
-            stmt.setDouble(6, book.getPrice());
-            stmt.setInt(7, book.getStock());
-            stmt.executeUpdate();
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
-        }
-        // set the book id back
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT book_id FROM book WHERE category = ? AND title = ? AND press = ? AND publish_year = ? AND author = ? AND price = ? AND stock = ?");
-            stmt.setString(1, book.getCategory());
-            stmt.setString(2, book.getTitle());
-            stmt.setString(3, book.getPress());
-            stmt.setInt(4, book.getPublishYear());
-            stmt.setString(5, book.getAuthor());
-            stmt.setDouble(6, book.getPrice());
-            stmt.setInt(7, book.getStock());
-            ResultSet rs = stmt.executeQuery();
-            rs.next();
-            book.setBookId(rs.getInt("book_id"));
-        } catch (Exception e) {
+        try (Connection conn = connector.getConn()) {
+            try {
+                // the book id comes back with the insert itself
+                PreparedStatement stmt = conn.prepareStatement(INSERT_BOOK, Statement.RETURN_GENERATED_KEYS);
+                bindBook(stmt, 0, book);
+                stmt.executeUpdate();
+                ResultSet keys = stmt.getGeneratedKeys();
+                if (!keys.next()) {
+                    throw new SQLException("No book_id generated.");
+                }
+                book.setBookId(keys.getInt(1));
+                commit(conn);
+                catalogueVersion.incrementAndGet();
+                indexBook(book);
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
+            }
+            return new ApiResult(true, "Store book successfully.");
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
-        return new ApiResult(true, "Store book successfully.");
     }
 
     @Override
     public ApiResult incBookStock(int bookId, int deltaStock) {
-        Connection conn = connector.getConn();
-        // Make sure the book exists
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM book WHERE book_id = ?");
-            stmt.setInt(1, bookId);
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) {
-                return new ApiResult(false, "Book not found.");
+        try (Connection conn = connector.getConn()) {
+            // check & update in one statement, no other trx can change the stock in between
+            try {
+                PreparedStatement stmt = conn.prepareStatement("UPDATE book SET stock = stock + ? WHERE book_id = ? AND stock + ? >= 0");
+                stmt.setInt(1, deltaStock);
+                stmt.setInt(2, bookId);
+                stmt.setInt(3, deltaStock);
+                if (stmt.executeUpdate() == 0) {
+                    rollback(conn);
+                    return new ApiResult(false, incBookStockFailure(conn, bookId));
+                }
+                commit(conn);
+                catalogueVersion.incrementAndGet();
+                bookCache.invalidate(bookId);
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
             }
-        } catch (Exception e) {
+            return new ApiResult(true, "Update stock successfully.");
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
+    }
 
-        // Make sure the new stock is non-negative
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT stock FROM book WHERE book_id = ?");
-            stmt.setInt(1, bookId);
-            ResultSet rs = stmt.executeQuery();
-            rs.next();
-            int stock = rs.getInt("stock");
-            if (stock + deltaStock < 0) {
-                return new ApiResult(false, "Stock cannot be negative.");
+    @Override
+    public ApiResult incBookStock(Map<Integer, Integer> deltaStocks) {
+        try (Connection conn = connector.getConn()) {
+            // update in ascending book_id order so that concurrent manifests cannot deadlock
+            List<Integer> bookIds = new ArrayList<>(new TreeMap<>(deltaStocks).keySet());
+            try {
+                PreparedStatement stmt = conn.prepareStatement("UPDATE book SET stock = stock + ? WHERE book_id = ? AND stock + ? >= 0");
+                for (int bookId : bookIds) {
+                    int deltaStock = deltaStocks.get(bookId);
+                    stmt.setInt(1, deltaStock);
+                    stmt.setInt(2, bookId);
+                    stmt.setInt(3, deltaStock);
+                    stmt.addBatch();
+                }
+                int[] counts = stmt.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 0) {
+                        rollback(conn);
+                        return new ApiResult(false, "Book " + bookIds.get(i) + ": " + incBookStockFailure(conn, bookIds.get(i)));
+                    }
+                }
+                commit(conn);
+                catalogueVersion.incrementAndGet();
+                bookIds.forEach(bookCache::invalidate);
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
             }
-        } catch (Exception e) {
+            return new ApiResult(true, "Update stock successfully.");
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
+    }
 
-        // Update the stock
-        try {
-            PreparedStatement stmt = conn.prepareStatement("UPDATE book SET stock = stock + ? WHERE book_id = ?");
-            stmt.setInt(1, deltaStock);
-            stmt.setInt(2, bookId);
-            stmt.executeUpdate();
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
+    @Override
+    public ApiResult storeBook(List<Book> books) {
+        int threshold = connector.getConf().getBulkLoadThreshold();
+        BulkLoader loader = connector.getConf().getType().bulkLoader();
+        if (loader != null && threshold > 0 && books.size() >= threshold) {
+            // a connection of its own, local infile is never allowed on the pooled ones
+            try (Connection conn = connector.openBulkLoadConn()) {
+                try {
+                    bulkLoadBooks(conn, loader, books);
+                    commit(conn);
+                    catalogueVersion.incrementAndGet();
+                    books.forEach(this::indexBook);
+                    return new ApiResult(true, "Store books successfully.");
+                } catch (Exception e) {
+                    // fall back to batched inserts, e.g. if local infile is disabled on the server
+                    rollback(conn);
+                }
+            } catch (SQLException e) {
+                // no connection for the bulk loader, batched inserts may still get one from the pool
+            }
+        }
+        try (Connection conn = connector.getConn()) {
+            try {
+                insertBooks(conn, books);
+                commit(conn);
+                catalogueVersion.incrementAndGet();
+                books.forEach(this::indexBook);
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
+            }
+            return new ApiResult(true, "Store books successfully.");
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
+    }
 
-        return new ApiResult(true, "Update stock successfully.");
+    @Override
+    public ApiResult importBooks(Iterator<Book> books, int chunkSize, boolean atomic) {
+        if (chunkSize <= 0) {
+            return new ApiResult(false, "Chunk size must be positive.");
+        }
+        long start = System.currentTimeMillis();
+        long committed = 0;
+        long written = 0;
+        int chunks = 0;
+        try (Connection conn = connector.getConn()) {
+            // one chunk buffer is reused, so memory does not grow with the input
+            List<Book> chunk = new ArrayList<>(chunkSize);
+            try {
+                while (books.hasNext()) {
+                    chunk.add(books.next());
+                    if (chunk.size() == chunkSize || !books.hasNext()) {
+                        insertBooks(conn, chunk);
+                        written += chunk.size();
+                        chunks++;
+                        if (!atomic) {
+                            conn.commit();
+                            catalogueVersion.incrementAndGet();
+                            committed = written;
+                            chunk.forEach(this::indexBook);
+                        }
+                        chunk.clear();
+                    }
+                }
+                conn.commit();
+                catalogueVersion.incrementAndGet();
+                if (atomic && written > 0) {
+                    // the chunks are gone by now, let the search index reload
+                    searchIndex.invalidate();
+                }
+                committed = written;
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage(),
+                        new IngestResult(committed, chunks, System.currentTimeMillis() - start));
+            }
+        } catch (SQLException e) {
+            return new ApiResult(false, e.getMessage(),
+                    new IngestResult(committed, chunks, System.currentTimeMillis() - start));
+        }
+        return new ApiResult(true, "Import books successfully.",
+                new IngestResult(committed, chunks, System.currentTimeMillis() - start));
     }
 
     @Override
-    public ApiResult storeBook(List<Book> books) {
-        Connection conn = connector.getConn();
-        try {
-            PreparedStatement stmt = conn.prepareStatement("INSERT INTO book VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
-            for (Book book : books) {
-                stmt.setInt(1, book.getBookId());
-                stmt.setString(2, book.getCategory());
-                stmt.setString(3, book.getTitle());
-                stmt.setString(4, book.getPress());
-                stmt.setInt(5, book.getPublishYear());
-                stmt.setString(6, book.getAuthor());
-                stmt.setDouble(7, book.getPrice());
-                stmt.setInt(8, book.getStock());
-                stmt.addBatch();
-            }
-            stmt.executeBatch();
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
+    public ApiResult removeBook(int bookId) {
+        try (Connection conn = connector.getConn()) {
+            // Check if the book exists
+            try {
+                if (findBook(conn, bookId) == null) {
+                    return new ApiResult(false, "Book not found.");
+                }
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage());
+            }
+
+            // Check if the book is borrowed but not returned
+            try {
+                PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM active_loan WHERE book_id = ?");
+                stmt.setInt(1, bookId);
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next()) {
+                    return new ApiResult(false, "Book is borrowed but not returned.");
+                }
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage());
+            }
+
+            // Remove the book
+            try {
+                PreparedStatement stmt = conn.prepareStatement("DELETE FROM book WHERE book_id = ?");
+                stmt.setInt(1, bookId);
+                // the book may be cached but already removed by someone else
+                if (stmt.executeUpdate() == 0) {
+                    rollback(conn);
+                    bookCache.invalidate(bookId);
+                    return new ApiResult(false, "Book not found.");
+                }
+                commit(conn);
+                catalogueVersion.incrementAndGet();
+                bookCache.invalidate(bookId);
+                searchIndex.remove(bookId);
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
+            }
+
+            return new ApiResult(true, "Remove book successfully.");
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
+    }
 
-        // set the book id back
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT book_id FROM book WHERE category = ? AND title = ? AND press = ? AND publish_year = ? AND author = ? AND price = ? AND stock = ?");
-            for (Book book : books) {
+    @Override
+    public ApiResult modifyBookInfo(Book book) {
+        try (Connection conn = connector.getConn()) {
+            // Check if the book exists
+            try {
+                Book old = findBook(conn, book.getBookId());
+                if (old == null) {
+                    return new ApiResult(false, "Book not found.");
+                }
+                book.setStock(old.getStock());
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage());
+            }
+
+            // Update the book info
+            try {
+                PreparedStatement stmt = conn.prepareStatement("UPDATE book SET category = ?, title = ?, press = ?, publish_year = ?, author = ?, price = ? WHERE book_id = ?");
                 stmt.setString(1, book.getCategory());
                 stmt.setString(2, book.getTitle());
                 stmt.setString(3, book.getPress());
                 stmt.setInt(4, book.getPublishYear());
                 stmt.setString(5, book.getAuthor());
                 stmt.setDouble(6, book.getPrice());
-                stmt.setInt(7, book.getStock());
-                ResultSet rs = stmt.executeQuery();
-                rs.next();
-                book.setBookId(rs.getInt("book_id"));
+                stmt.setInt(7, book.getBookId());
+                if (stmt.executeUpdate() == 0) {
+                    rollback(conn);
+                    bookCache.invalidate(book.getBookId());
+                    return new ApiResult(false, "Book not found.");
+                }
+                commit(conn);
+                catalogueVersion.incrementAndGet();
+                bookCache.invalidate(book.getBookId());
+                indexBook(book);
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
             }
-        } catch (Exception e) {
+            return new ApiResult(true, "Modify book info successfully.");
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
-
-        return new ApiResult(true, "Store books successfully.");
     }
 
     @Override
-    public ApiResult removeBook(int bookId) {
-        Connection conn = connector.getConn();
-        // Check if the book exists
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM book WHERE book_id = ?");
-            stmt.setInt(1, bookId);
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) {
-                return new ApiResult(false, "Book not found.");
+    public ApiResult queryBook(BookQueryConditions conditions) {
+        // checked before the cache, which would serve any limit
+        if (conditions.getLimit() != null && conditions.getLimit() <= 0) {
+            return new ApiResult(false, "Limit must be positive.");
+        }
+        // taken before the query, a change committed meanwhile makes the result stale at once
+        long version = catalogueVersion.get();
+        String key = conditions.normalizedKey();
+        CachedQuery cached = queryCache.get(key, version);
+        if (cached != null) {
+            return new ApiResult(true, "Query books successfully.", copyResults(cached.results));
+        }
+        // all books matching the filters are cached under the filter key, whatever their order
+        boolean whole = conditions.getPageSize() == null && conditions.getPageToken() == null
+                && conditions.getProjection() == null;
+        String filterKey = whole ? conditions.filterKey() : null;
+        if (whole) {
+            cached = queryCache.get(filterKey, version);
+            List<Book> books = cached == null ? null : cached.select(conditions);
+            if (books != null) {
+                return new ApiResult(true, "Query books successfully.", new BookQueryResults(books));
             }
-        } catch (Exception e) {
-            return new ApiResult(false, e.getMessage());
         }
+        ApiResult result = queryBookFromDatabase(conditions);
+        if (result.ok) {
+            CachedQuery query = new CachedQuery(copyResults((BookQueryResults) result.payload),
+                    conditions.getSortBy(), conditions.getSortOrder());
+            queryCache.put(whole && conditions.getLimit() == null ? filterKey : key, query, version);
+        }
+        return result;
+    }
 
-        // Check if the book is borrowed but not returned
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM borrow WHERE book_id = ? AND return_time = 0");
-            stmt.setInt(1, bookId);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return new ApiResult(false, "Book is borrowed but not returned.");
+    private ApiResult queryBookFromDatabase(BookQueryConditions conditions) {
+        try (Connection conn = connector.getConn()) {
+            List<Book> books = new ArrayList<>();
+
+            Integer pageSize = conditions.getPageSize();
+            if (pageSize != null && pageSize <= 0) {
+                return new ApiResult(false, "Page size must be positive.");
+            }
+            String sql;
+            List<Object> conditionsList = new ArrayList<>();
+            try {
+                IntHashSet candidates = indexCandidates(conn, conditions);
+                if (candidates != null && candidates.isEmpty()) {
+                    return new ApiResult(true, "Query books successfully.", new BookQueryResults(books, null));
+                }
+                sql = bookQuerySql(conditions, candidates, true, conditionsList);
+            } catch (IllegalArgumentException e) {
+                return new ApiResult(false, e.getMessage());
             }
-        } catch (Exception e) {
-            return new ApiResult(false, e.getMessage());
-        }
 
-        // Remove the book
-        try {
-            PreparedStatement stmt = conn.prepareStatement("DELETE FROM book WHERE book_id = ?");
-            stmt.setInt(1, bookId);
-            stmt.executeUpdate();
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
+            String nextPageToken = null;
+            try {
+                PreparedStatement stmt = conn.prepareStatement(sql);
+                for (int i = 0; i < conditionsList.size(); i++) {
+                    stmt.setObject(i + 1, conditionsList.get(i));
+                }
+                ResultSet rs = stmt.executeQuery();
+                Set<SortColumn> projection = projectionOf(conditions);
+                if (projection != null) {
+                    // only the projected columns, stored column-wise without Book objects
+                    BookRows rows = new BookRows(projection);
+                    while (rs.next()) {
+                        readRow(rs, rows);
+                    }
+                    if (pageSize != null && rows.size() > pageSize) {
+                        rows.removeLastRow();
+                        Book last = rows.toBook(rows.size() - 1);
+                        nextPageToken = PageToken.after(last, conditions).encode();
+                    }
+                    return new ApiResult(true, "Query books successfully.", new BookQueryResults(rows, nextPageToken));
+                }
+                while (rs.next()) {
+                    books.add(mapBook(rs));
+                }
+                if (pageSize != null && books.size() > pageSize) {
+                    books.remove(books.size() - 1);
+                    Book last = books.get(books.size() - 1);
+                    nextPageToken = PageToken.after(last, conditions).encode();
+                }
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage());
+            }
+
+            return new ApiResult(true, "Query books successfully.", new BookQueryResults(books, nextPageToken));
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
-
-        return new ApiResult(true, "Remove book successfully.");
     }
 
     @Override
-    public ApiResult modifyBookInfo(Book book) {
-        Connection conn = connector.getConn();
-        // Check if the book exists
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT stock FROM book WHERE book_id = ?");
-            stmt.setInt(1, book.getBookId());
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) {
-                return new ApiResult(false, "Book not found.");
+    public ApiResult borrowBook(Borrow borrow) {
+        return admission.borrow(borrow);
+    }
+
+    /* borrow batches of the admission layer, one statement per step however many borrows are batched */
+    private void borrowBatch(int bookId, List<BorrowAdmission.Pending> batch) {
+        if (batch.size() == 1) {
+            batch.get(0).complete(borrowOne(batch.get(0).borrow));
+            return;
+        }
+        // the first borrow of a card counts, the others of the same card are answered like it
+        Map<Integer, BorrowAdmission.Pending> byCard = new LinkedHashMap<>();
+        for (BorrowAdmission.Pending pending : batch) {
+            byCard.putIfAbsent(pending.borrow.getCardId(), pending);
+        }
+        List<BorrowAdmission.Pending> distinct = new ArrayList<>(byCard.values());
+        for (int from = 0; from < distinct.size(); from += OUTPUT_INSERT_ROWS) {
+            List<BorrowAdmission.Pending> chunk = distinct.subList(from, Math.min(from + OUTPUT_INSERT_ROWS, distinct.size()));
+            if (chunk.size() == 1 || borrowChunk(bookId, chunk) != null) {
+                // e.g. a card that does not exist, fall back to one borrow at a time
+                for (BorrowAdmission.Pending pending : chunk) {
+                    pending.complete(borrowOne(pending.borrow));
+                }
             }
-            book.setStock(rs.getInt("stock"));
-        } catch (Exception e) {
+        }
+        for (BorrowAdmission.Pending pending : batch) {
+            BorrowAdmission.Pending first = byCard.get(pending.borrow.getCardId());
+            if (first != pending) {
+                pending.complete(first.getResult().ok
+                        ? new ApiResult(false, "User has borrowed the book and not returned.")
+                        : first.getResult());
+            }
+        }
+    }
+
+    /* borrow one copy for each of the distinct cards of chunk, returns a failure to retry them one at a time */
+    private ApiResult borrowChunk(int bookId, List<BorrowAdmission.Pending> chunk) {
+        try (Connection conn = connector.getConn()) {
+            List<BorrowAdmission.Pending> granted = new ArrayList<>();
+            List<BorrowAdmission.Pending> refused = new ArrayList<>();
+            IntHashSet borrowing = new IntHashSet(chunk.size());
+            try {
+                // take copies for all cards in one decrement, fewer if the stock is short,
+                // the row lock held from here on serializes every other borrow of the book
+                int taken = chunk.size();
+                PreparedStatement take = conn.prepareStatement("UPDATE book SET stock = stock - ? WHERE book_id = ? AND stock >= ?");
+                while (true) {
+                    take.setInt(1, taken);
+                    take.setInt(2, bookId);
+                    take.setInt(3, taken);
+                    if (take.executeUpdate() > 0) {
+                        break;
+                    }
+                    PreparedStatement stmt = conn.prepareStatement("SELECT stock FROM book WHERE book_id = ?");
+                    stmt.setInt(1, bookId);
+                    ResultSet rs = stmt.executeQuery();
+                    taken = rs.next() ? Math.min(rs.getInt("stock"), taken) : 0;
+                    if (taken <= 0) {
+                        break;
+                    }
+                }
+
+                // cards that have the book and not returned it
+                if (taken > 0) {
+                    List<Integer> cardIds = new ArrayList<>();
+                    for (BorrowAdmission.Pending pending : chunk) {
+                        cardIds.add(pending.borrow.getCardId());
+                    }
+                    PreparedStatement stmt = conn.prepareStatement(
+                            "SELECT card_id FROM active_loan WHERE book_id = ? AND card_id IN " + inList(cardIds.size()));
+                    stmt.setInt(1, bookId);
+                    bindInList(stmt, 1, cardIds);
+                    ResultSet rs = stmt.executeQuery();
+                    while (rs.next()) {
+                        borrowing.add(rs.getInt("card_id"));
+                    }
+                }
+                for (BorrowAdmission.Pending pending : chunk) {
+                    if (!borrowing.contains(pending.borrow.getCardId())) {
+                        (granted.size() < taken ? granted : refused).add(pending);
+                    }
+                }
+                if (taken > granted.size()) {
+                    // give back the copies of the cards that already have one
+                    PreparedStatement stmt = conn.prepareStatement("UPDATE book SET stock = stock + ? WHERE book_id = ?");
+                    stmt.setInt(1, taken - granted.size());
+                    stmt.setInt(2, bookId);
+                    stmt.executeUpdate();
+                }
+
+                if (!granted.isEmpty()) {
+                    // open the loans, they go to the history when returned. the driver
+                    // rewrites the batch into multi-row inserts, one statement serves every batch size
+                    PreparedStatement stmt = conn.prepareStatement(INSERT_ACTIVE_LOAN);
+                    for (BorrowAdmission.Pending pending : granted) {
+                        stmt.setInt(1, pending.borrow.getCardId());
+                        stmt.setInt(2, bookId);
+                        stmt.setLong(3, pending.borrow.getBorrowTime());
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+                commit(conn);
+                if (!granted.isEmpty()) {
+                    catalogueVersion.incrementAndGet();
+                    bookCache.invalidate(bookId);
+                }
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
+            }
+            for (BorrowAdmission.Pending pending : chunk) {
+                if (granted.contains(pending)) {
+                    pending.complete(new ApiResult(true, "Borrow book successfully."));
+                } else if (refused.contains(pending)) {
+                    pending.complete(new ApiResult(false, BorrowAdmission.NO_STOCK));
+                } else {
+                    pending.complete(new ApiResult(false, "User has borrowed the book and not returned."));
+                }
+            }
+            return null;
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
+    }
 
-        // Update the book info
-        try {
-            PreparedStatement stmt = conn.prepareStatement("UPDATE book SET category = ?, title = ?, press = ?, publish_year = ?, author = ?, price = ? WHERE book_id = ?");
-            stmt.setString(1, book.getCategory());
-            stmt.setString(2, book.getTitle());
-            stmt.setString(3, book.getPress());
-            stmt.setInt(4, book.getPublishYear());
-            stmt.setString(5, book.getAuthor());
-            stmt.setDouble(6, book.getPrice());
-            stmt.setInt(7, book.getBookId());
-            stmt.executeUpdate();
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
+    private ApiResult borrowOne(Borrow borrow) {
+        try (Connection conn = connector.getConn()) {
+            // take the book first: the decrement checks & locks the stock in one statement
+            try {
+                PreparedStatement stmt = conn.prepareStatement("UPDATE book SET stock = stock - 1 WHERE book_id = ? AND stock > 0");
+                stmt.setInt(1, borrow.getBookId());
+                if (stmt.executeUpdate() == 0) {
+                    rollback(conn);
+                    return new ApiResult(false, BorrowAdmission.NO_STOCK);
+                }
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
+            }
+
+            // open the loan unless the user has borrowed the book and not returned,
+            // concurrent borrows of the book wait for the row lock taken above
+            try {
+                PreparedStatement stmt = conn.prepareStatement(activeLoanInsertSql);
+                stmt.setInt(1, borrow.getCardId());
+                stmt.setInt(2, borrow.getBookId());
+                stmt.setLong(3, borrow.getBorrowTime());
+                stmt.setInt(4, borrow.getCardId());
+                stmt.setInt(5, borrow.getBookId());
+                if (stmt.executeUpdate() == 0) {
+                    rollback(conn);
+                    return new ApiResult(false, "User has borrowed the book and not returned.");
+                }
+                commit(conn);
+                catalogueVersion.incrementAndGet();
+                bookCache.invalidate(borrow.getBookId());
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
+            }
+            return new ApiResult(true, "Borrow book successfully.");
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
-        return new ApiResult(true, "Modify book info successfully.");
     }
 
     @Override
-    public ApiResult queryBook(BookQueryConditions conditions) {
-        Connection conn = connector.getConn();
-        List<Book> books = new ArrayList<>();
-
-        String sql = "SELECT * FROM book WHERE 1 = 1";
-        List<Object> conditionsList = new ArrayList<>();
+    public ApiResult returnBook(Borrow borrow) {
+        try (Connection conn = connector.getConn()) {
+            // Check if the user has borrowed the book and not returned
+            try {
+                PreparedStatement stmt = conn.prepareStatement("SELECT borrow_time FROM active_loan WHERE card_id = ? AND book_id = ?");
+                stmt.setInt(1, borrow.getCardId());
+                stmt.setInt(2, borrow.getBookId());
+                ResultSet rs = stmt.executeQuery();
+                if (!rs.next()) {
+                    return new ApiResult(false, "User has not borrowed the book or has returned.");
+                }
+                if (borrow.getReturnTime() <= rs.getLong("borrow_time")) {
+                    return new ApiResult(false, "Return time is earlier than borrow time.");
+                }
+                borrow.setBorrowTime(rs.getLong("borrow_time"));
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage());
+            }
 
-        if (conditions.getCategory() != null) {
-            sql += " AND category = ?";
-            conditionsList.add(conditions.getCategory());
-        }
-        if (conditions.getTitle() != null) {
-            sql += " AND title LIKE ?";
-            conditionsList.add("%" + conditions.getTitle() + "%");
-        }
-        if (conditions.getPress() != null) {
-            sql += " AND press LIKE ?";
-            conditionsList.add("%" + conditions.getPress() + "%");
-        }
-        if (conditions.getMinPublishYear() != null) {
-            sql += " AND publish_year >= ?";
-            conditionsList.add(conditions.getMinPublishYear());
-        }
-        if (conditions.getMaxPublishYear() != null) {
-            sql += " AND publish_year <= ?";
-            conditionsList.add(conditions.getMaxPublishYear());
-        }
-        if (conditions.getAuthor() != null) {
-            sql += " AND author LIKE ?";
-            conditionsList.add("%" + conditions.getAuthor() + "%");
+            // close the loan & record it in the history, update book stock
+            try {
+                PreparedStatement stmt = conn.prepareStatement(DELETE_ACTIVE_LOAN);
+                stmt.setInt(1, borrow.getCardId());
+                stmt.setInt(2, borrow.getBookId());
+                if (stmt.executeUpdate() == 0) {
+                    // returned concurrently since the check above
+                    rollback(conn);
+                    return new ApiResult(false, "User has not borrowed the book or has returned.");
+                }
+                stmt = conn.prepareStatement(INSERT_RETURNED_BORROW);
+                stmt.setInt(1, borrow.getCardId());
+                stmt.setInt(2, borrow.getBookId());
+                stmt.setLong(3, borrow.getBorrowTime());
+                stmt.setLong(4, borrow.getReturnTime());
+                stmt.executeUpdate();
+                stmt = conn.prepareStatement("UPDATE book SET stock = stock + 1 WHERE book_id = ?");
+                stmt.setInt(1, borrow.getBookId());
+                stmt.executeUpdate();
+                commit(conn);
+                catalogueVersion.incrementAndGet();
+                bookCache.invalidate(borrow.getBookId());
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
+            }
+            return new ApiResult(true, "Return book successfully.");
+        } catch (SQLException e) {
+            return new ApiResult(false, e.getMessage());
         }
-        if (conditions.getMinPrice() != null) {
-            sql += " AND price >= ?";
-            conditionsList.add(conditions.getMinPrice());
+    }
+
+    @Override
+    public ApiResult borrowBooks(int cardId, List<Integer> bookIds, long time) {
+        // lock the books in ascending book_id order so that concurrent checkouts cannot deadlock
+        List<Integer> sorted = new ArrayList<>(new TreeSet<>(bookIds));
+        if (sorted.size() != bookIds.size()) {
+            return new ApiResult(false, "A book is listed more than once.");
         }
-        if (conditions.getMaxPrice() != null) {
-            sql += " AND price <= ?";
-            conditionsList.add(conditions.getMaxPrice());
+        if (sorted.isEmpty()) {
+            return new ApiResult(true, "Borrow books successfully.");
         }
-        if (conditions.getSortBy() != null) {
-            sql += " ORDER BY " + conditions.getSortBy().getValue();
+        try (Connection conn = connector.getConn()) {
+            try {
+                // take one copy of each book
+                PreparedStatement stmt = conn.prepareStatement("UPDATE book SET stock = stock - 1 WHERE book_id = ? AND stock > 0");
+                for (int bookId : sorted) {
+                    stmt.setInt(1, bookId);
+                    stmt.addBatch();
+                }
+                int[] counts = stmt.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] == 0) {
+                        rollback(conn);
+                        return new ApiResult(false, "Book " + sorted.get(i) + ": Book does not exist or has no stock.");
+                    }
+                }
+
+                // books the user has borrowed and not returned, in one query
+                stmt = conn.prepareStatement("SELECT book_id FROM active_loan WHERE card_id = ? AND book_id IN " + inList(sorted.size()));
+                stmt.setInt(1, cardId);
+                bindInList(stmt, 1, sorted);
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next()) {
+                    int bookId = rs.getInt("book_id");
+                    rollback(conn);
+                    return new ApiResult(false, "Book " + bookId + ": User has borrowed the book and not returned.");
+                }
+
+                stmt = conn.prepareStatement(INSERT_ACTIVE_LOAN);
+                for (int bookId : sorted) {
+                    stmt.setInt(1, cardId);
+                    stmt.setInt(2, bookId);
+                    stmt.setLong(3, time);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                commit(conn);
+                catalogueVersion.incrementAndGet();
+                sorted.forEach(bookCache::invalidate);
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
+            }
+            return new ApiResult(true, "Borrow books successfully.");
+        } catch (SQLException e) {
+            return new ApiResult(false, e.getMessage());
         }
-        if (conditions.getSortOrder() != null) {
-            sql += " " + conditions.getSortOrder().getValue();
+    }
+
+    @Override
+    public ApiResult returnBooks(int cardId, List<Integer> bookIds, long time) {
+        List<Integer> sorted = new ArrayList<>(new TreeSet<>(bookIds));
+        if (sorted.size() != bookIds.size()) {
+            return new ApiResult(false, "A book is listed more than once.");
         }
-        if (conditions.getSortBy() != SortColumn.BOOK_ID) {
-            sql += ", book_id";
+        if (sorted.isEmpty()) {
+            return new ApiResult(true, "Return books successfully.");
         }
+        try (Connection conn = connector.getConn()) {
+            try {
+                // the open borrows of all the books in one query
+                PreparedStatement stmt = conn.prepareStatement("SELECT book_id, borrow_time FROM active_loan WHERE card_id = ? AND book_id IN " + inList(sorted.size()));
+                stmt.setInt(1, cardId);
+                bindInList(stmt, 1, sorted);
+                ResultSet rs = stmt.executeQuery();
+                Map<Integer, Long> borrowTimes = new HashMap<>();
+                while (rs.next()) {
+                    borrowTimes.put(rs.getInt("book_id"), rs.getLong("borrow_time"));
+                }
+                for (int bookId : sorted) {
+                    if (!borrowTimes.containsKey(bookId)) {
+                        return new ApiResult(false, "Book " + bookId + ": User has not borrowed the book or has returned.");
+                    }
+                    if (time <= borrowTimes.get(bookId)) {
+                        return new ApiResult(false, "Book " + bookId + ": Return time is earlier than borrow time.");
+                    }
+                }
 
-        try {
-            PreparedStatement stmt = conn.prepareStatement(sql);
-            for (int i = 0; i < conditionsList.size(); i++) {
-                stmt.setObject(i + 1, conditionsList.get(i));
+                // close the loans & record them in the history, put the copies back, in ascending book_id order
+                stmt = conn.prepareStatement(DELETE_ACTIVE_LOAN);
+                for (int bookId : sorted) {
+                    stmt.setInt(1, cardId);
+                    stmt.setInt(2, bookId);
+                    stmt.addBatch();
+                }
+                int[] counts = stmt.executeBatch();
+                for (int i = 0; i < counts.length; i++) {
+                    // returned concurrently since the check above
+                    if (counts[i] == 0) {
+                        rollback(conn);
+                        return new ApiResult(false, "Book " + sorted.get(i) + ": User has not borrowed the book or has returned.");
+                    }
+                }
+                stmt = conn.prepareStatement(INSERT_RETURNED_BORROW);
+                for (int bookId : sorted) {
+                    stmt.setInt(1, cardId);
+                    stmt.setInt(2, bookId);
+                    stmt.setLong(3, borrowTimes.get(bookId));
+                    stmt.setLong(4, time);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                stmt = conn.prepareStatement("UPDATE book SET stock = stock + 1 WHERE book_id = ?");
+                for (int bookId : sorted) {
+                    stmt.setInt(1, bookId);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                commit(conn);
+                catalogueVersion.incrementAndGet();
+                sorted.forEach(bookCache::invalidate);
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
             }
-            ResultSet rs = stmt.executeQuery();
-            while (rs.next()) {
-                Book book = new Book();
-                book.setBookId(rs.getInt("book_id"));
-                book.setCategory(rs.getString("category"));
-                book.setTitle(rs.getString("title"));
-                book.setPress(rs.getString("press"));
-                book.setPublishYear(rs.getInt("publish_year"));
-                book.setAuthor(rs.getString("author"));
-                book.setPrice(rs.getDouble("price"));
-                book.setStock(rs.getInt("stock"));
-                books.add(book);
-            }
-        } catch (Exception e) {
+            return new ApiResult(true, "Return books successfully.");
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
-
-        return new ApiResult(true, "Query books successfully.", new BookQueryResults(books));
     }
 
     @Override
-    public ApiResult borrowBook(Borrow borrow) {
-        Connection conn = connector.getConn();
-        // Check if the user has borrowed the book and not returned
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0");
-            stmt.setInt(1, borrow.getBookId());
-            stmt.setInt(2, borrow.getCardId());
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return new ApiResult(false, "User has borrowed the book and not returned.");
+    public ApiResult showBorrowHistory(int cardId) {
+        try (Connection conn = connector.getConn()) {
+            List<BorrowHistories.Item> borrows = new ArrayList<>();
+            // inquire borrow history, borrow time desc, book id asc
+            try {
+                PreparedStatement stmt = conn.prepareStatement(BORROW_HISTORY_SQL);
+                stmt.setInt(1, cardId);
+                stmt.setInt(2, cardId);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    borrows.add(mapBorrowItem(rs));
+                }
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage());
             }
-        } catch (Exception e) {
+            return new ApiResult(true, "Query borrow history successfully.", new BorrowHistories(borrows));
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
+    }
 
-        // Check if the book exists and has stock
-        try {
-            // add FOR UPDATE to lock the row
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM book WHERE book_id = ? AND stock > 0 FOR UPDATE");
-            stmt.setInt(1, borrow.getBookId());
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) {
-                return new ApiResult(false, "Book does not exist or has no stock.");
+    @Override
+    public ApiResult streamBooks(BookQueryConditions conditions) {
+        String sql;
+        List<Object> params = new ArrayList<>();
+        try (Connection conn = connector.getConn()) {
+            IntHashSet candidates = indexCandidates(conn, conditions);
+            if (candidates != null && candidates.isEmpty()) {
+                return new ApiResult(true, "Open stream successfully.", Stream.<Book>empty());
             }
-        } catch (Exception e) {
+            sql = bookQuerySql(conditions, candidates, false, params);
+        } catch (SQLException | IllegalArgumentException e) {
             return new ApiResult(false, e.getMessage());
         }
+        Set<SortColumn> projection = projectionOf(conditions);
+        if (projection == null) {
+            return streamRows(sql, params, this::mapBook);
+        }
+        // a one-row buffer, refilled for every row
+        BookRows row = new BookRows(projection);
+        return streamRows(sql, params, rs -> {
+            if (row.size() > 0) {
+                row.removeLastRow();
+            }
+            readRow(rs, row);
+            return row.toBook(0);
+        });
+    }
 
-        // Add borrow record and update book stock
-        try {
-            PreparedStatement stmt = conn.prepareStatement("INSERT INTO borrow (book_id, card_id, borrow_time) VALUES (?, ?, ?)");
-            stmt.setInt(1, borrow.getBookId());
-            stmt.setInt(2, borrow.getCardId());
-            stmt.setLong(3, borrow.getBorrowTime());
-            stmt.executeUpdate();
-            stmt = conn.prepareStatement("UPDATE book SET stock = stock - 1 WHERE book_id = ?");
-            stmt.setInt(1, borrow.getBookId());
-            stmt.executeUpdate();
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
+    @Override
+    public ApiResult facetBooks(BookQueryConditions conditions, BookFacet... facets) {
+        BookFacets results = new BookFacets(facets);
+        if (results.getFacets().isEmpty()) {
+            return new ApiResult(true, "Count books successfully.", results);
+        }
+        try (Connection conn = connector.getConn()) {
+            List<Object> params = new ArrayList<>();
+            String sql;
+            try {
+                IntHashSet candidates = indexCandidates(conn, conditions);
+                if (candidates != null && candidates.isEmpty()) {
+                    return new ApiResult(true, "Count books successfully.", results);
+                }
+                sql = facetBooksSql(conditions, candidates, results.getFacets().keySet(), params);
+            } catch (IllegalArgumentException e) {
+                return new ApiResult(false, e.getMessage());
+            }
+            try {
+                PreparedStatement stmt = conn.prepareStatement(sql);
+                for (int i = 0; i < params.size(); i++) {
+                    stmt.setObject(i + 1, params.get(i));
+                }
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    BookFacet facet = BookFacet.values()[rs.getInt("facet")];
+                    Object value = facet == BookFacet.PUBLISH_YEAR ? (Object) rs.getInt("int_value")
+                            : dictionary.intern(rs.getString("str_value"));
+                    results.getBuckets(facet).add(new BookFacets.Bucket(value, rs.getLong("cnt")));
+                }
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage());
+            }
+            return new ApiResult(true, "Count books successfully.", results);
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
-        return new ApiResult(true, "Borrow book successfully.");
     }
 
     @Override
-    public ApiResult returnBook(Borrow borrow) {
-        Connection conn = connector.getConn();
-        // Check if the user has borrowed the book and not returned
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT borrow_time FROM borrow WHERE book_id = ? AND card_id = ? AND return_time = 0");
-            stmt.setInt(1, borrow.getBookId());
-            stmt.setInt(2, borrow.getCardId());
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) {
-                return new ApiResult(false, "User has not borrowed the book or has returned.");
+    public ApiResult streamBorrowHistory(int cardId) {
+        List<Object> params = new ArrayList<>();
+        params.add(cardId);
+        params.add(cardId);
+        return streamRows(BORROW_HISTORY_SQL, params, this::mapBorrowItem);
+    }
+
+    @Override
+    public ApiResult registerCard(Card card) {
+        try (Connection conn = connector.getConn()) {
+            // Check if the card exists, when <name, department, type> are same, the card exists
+            try {
+                PreparedStatement stmt = conn.prepareStatement("SELECT * FROM card WHERE name = ? AND department = ? AND type = ?");
+                stmt.setString(1, card.getName());
+                stmt.setString(2, card.getDepartment());
+                stmt.setString(3, card.getType().getStr());
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next()) {
+                    return new ApiResult(false, "Card already exists.");
+                }
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage());
             }
-            if (borrow.getReturnTime() <= rs.getLong("borrow_time")) {
-                return new ApiResult(false, "Return time is earlier than borrow time.");
+            // Register card
+            try {
+                PreparedStatement stmt = conn.prepareStatement("INSERT INTO card (name, department, type) VALUES (?, ?, ?)");
+                stmt.setString(1, card.getName());
+                stmt.setString(2, card.getDepartment());
+                stmt.setString(3, card.getType().getStr());
+                stmt.executeUpdate();
+                commit(conn);
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
             }
-            borrow.setBorrowTime(rs.getLong("borrow_time"));
-        } catch (Exception e) {
+
+            // set card id back
+            try {
+                PreparedStatement stmt = conn.prepareStatement("SELECT card_id FROM card WHERE name = ? AND department = ? AND type = ?");
+                stmt.setString(1, card.getName());
+                stmt.setString(2, card.getDepartment());
+                stmt.setString(3, card.getType().getStr());
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next()) {
+                    card.setCardId(rs.getInt("card_id"));
+                }
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage());
+            }
+            return new ApiResult(true, "Register card successfully.");
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
+    }
 
-        // Update borrow record and update book stock
-        try {
-            PreparedStatement stmt = conn.prepareStatement("UPDATE borrow SET return_time = ? WHERE book_id = ? AND card_id = ? AND return_time = 0");
-            stmt.setLong(1, borrow.getReturnTime());
-            stmt.setInt(2, borrow.getBookId());
-            stmt.setInt(3, borrow.getCardId());
-            stmt.executeUpdate();
-            stmt = conn.prepareStatement("UPDATE book SET stock = stock + 1 WHERE book_id = ?");
-            stmt.setInt(1, borrow.getBookId());
-            stmt.executeUpdate();
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
+    @Override
+    public ApiResult removeCard(int cardId) {
+        try (Connection conn = connector.getConn()) {
+            // Check if the card exists
+            try {
+                PreparedStatement stmt = conn.prepareStatement("SELECT * FROM card WHERE card_id = ?");
+                stmt.setInt(1, cardId);
+                ResultSet rs = stmt.executeQuery();
+                if (!rs.next()) {
+                    return new ApiResult(false, "Card does not exist.");
+                }
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage());
+            }
+
+            // Check if the card have borrowed books and not returned
+            try {
+                PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM active_loan WHERE card_id = ?");
+                stmt.setInt(1, cardId);
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next()) {
+                    return new ApiResult(false, "Card has borrowed books and not returned.");
+                }
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage());
+            }
+            // Remove card
+            try {
+                PreparedStatement stmt = conn.prepareStatement("DELETE FROM card WHERE card_id = ?");
+                stmt.setInt(1, cardId);
+                stmt.executeUpdate();
+                commit(conn);
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
+            }
+            return new ApiResult(true, "Remove card successfully.");
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
-        return new ApiResult(true, "Return book successfully.");
     }
 
     @Override
-    public ApiResult showBorrowHistory(int cardId) {
-        Connection conn = connector.getConn();
-        List<BorrowHistories.Item> borrows = new ArrayList<>();
-        // inquire borrow history, borrow time desc, book id asc
-        try {
-            PreparedStatement stmt = conn.prepareStatement(
-                "SELECT borrow.card_id, borrow.book_id, borrow.borrow_time, borrow.return_time, " +
-                "book.category, book.title, book.press, book.publish_year, book.author, book.price " +
-                "FROM borrow, book " +
-                "WHERE borrow.book_id = book.book_id AND borrow.card_id = ? " +
-                "ORDER BY borrow.borrow_time DESC, borrow.book_id ASC"
-            );
-            stmt.setInt(1, cardId);
-            ResultSet rs = stmt.executeQuery();
-            while (rs.next()) {
-                BorrowHistories.Item item = new BorrowHistories.Item();
-                item.setCardId(rs.getInt("card_id"));
-                item.setBookId(rs.getInt("book_id"));
-                item.setBorrowTime(rs.getLong("borrow_time"));
-                item.setReturnTime(rs.getLong("return_time"));
-                item.setCategory(rs.getString("category"));
-                item.setTitle(rs.getString("title"));
-                item.setPress(rs.getString("press"));
-                item.setPublishYear(rs.getInt("publish_year"));
-                item.setAuthor(rs.getString("author"));
-                item.setPrice(rs.getDouble("price"));
-                borrows.add(item);
+    public ApiResult showCards() {
+        try (Connection conn = connector.getConn()) {
+            List<Card> cards = new ArrayList<>();
+            // show all cards
+            try {
+                PreparedStatement stmt = conn.prepareStatement("SELECT * FROM card ORDER BY card_id ASC");
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    Card card = new Card();
+                    card.setCardId(rs.getInt("card_id"));
+                    card.setName(rs.getString("name"));
+                    card.setDepartment(dictionary.intern(rs.getString("department")));
+                    card.setType(CardType.values(rs.getString("type")));
+                    cards.add(card);
+                }
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage());
             }
-        } catch (Exception e) {
+            return new ApiResult(true, "Show cards successfully.", new CardList(cards));
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
-        return new ApiResult(true, "Query borrow history successfully.", new BorrowHistories(borrows));
     }
 
     @Override
-    public ApiResult registerCard(Card card) {
-        Connection conn = connector.getConn();
-        // Check if the card exists, when <name, department, type> are same, the card exists
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM card WHERE name = ? AND department = ? AND type = ?");
-            stmt.setString(1, card.getName());
-            stmt.setString(2, card.getDepartment());
-            stmt.setString(3, card.getType().getStr());
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return new ApiResult(false, "Card already exists.");
+    public ApiResult resetDatabase() {
+        try (Connection conn = connector.getConn()) {
+            try (Statement stmt = conn.createStatement()) {
+                DBInitializer initializer = connector.getConf().getType().getDbInitializer();
+                stmt.addBatch(initializer.sqlDropActiveLoan());
+                stmt.addBatch(initializer.sqlDropBorrow());
+                stmt.addBatch(initializer.sqlDropBook());
+                stmt.addBatch(initializer.sqlDropCard());
+                stmt.addBatch(initializer.sqlCreateCard());
+                stmt.addBatch(initializer.sqlCreateBook());
+                stmt.addBatch(initializer.sqlCreateBorrow());
+                stmt.addBatch(initializer.sqlCreateActiveLoan());
+                for (IndexDefinition index : DBInitializer.INDEXES) {
+                    stmt.addBatch(initializer.sqlCreateIndex(index));
+                }
+                stmt.executeBatch();
+                commit(conn);
+                catalogueVersion.incrementAndGet();
+                bookCache.invalidateAll();
+                searchIndex.invalidate();
+            } catch (Exception e) {
+                rollback(conn);
+                return new ApiResult(false, e.getMessage());
             }
-        } catch (Exception e) {
+            return new ApiResult(true, null);
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
-        // Register card
-        try {
-            PreparedStatement stmt = conn.prepareStatement("INSERT INTO card (name, department, type) VALUES (?, ?, ?)");
-            stmt.setString(1, card.getName());
-            stmt.setString(2, card.getDepartment());
-            stmt.setString(3, card.getType().getStr());
-            stmt.executeUpdate();
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
+    }
+
+    @Override
+    public ApiResult migrateDatabase() {
+        try (Connection conn = connector.getConn()) {
+            List<String> created = new ArrayList<>();
+            try {
+                DBInitializer initializer = connector.getConf().getType().getDbInitializer();
+                PreparedStatement exists = conn.prepareStatement(initializer.sqlTableExists());
+                exists.setString(1, "active_loan");
+                if (!exists.executeQuery().next()) {
+                    try (Statement ddl = conn.createStatement()) {
+                        ddl.execute(initializer.sqlCreateActiveLoan());
+                        commit(conn);
+                    } catch (SQLException e) {
+                        rollback(conn);
+                        throw e;
+                    }
+                    created.add("active_loan");
+                }
+                // open loans used to be the borrow records without a return time, they move to
+                // active_loan in one transaction. checked every time, since creating the table
+                // commits on its own on some databases and a failed move would be left behind
+                PreparedStatement loans = conn.prepareStatement("SELECT 1" + connector.getConf().getType().fromDual() +
+                        " WHERE EXISTS (SELECT 1 FROM borrow WHERE return_time = 0)");
+                if (loans.executeQuery().next()) {
+                    try (Statement dml = conn.createStatement()) {
+                        dml.executeUpdate("INSERT INTO active_loan (card_id, book_id, borrow_time) " +
+                                "SELECT card_id, book_id, borrow_time FROM borrow WHERE return_time = 0 " +
+                                "AND NOT EXISTS (SELECT 1 FROM active_loan " +
+                                "WHERE active_loan.card_id = borrow.card_id AND active_loan.book_id = borrow.book_id)");
+                        dml.executeUpdate("DELETE FROM borrow WHERE return_time = 0");
+                        commit(conn);
+                    } catch (SQLException e) {
+                        rollback(conn);
+                        throw e;
+                    }
+                }
+                // each index is built on its own, online builds cannot run inside a transaction
+                conn.setAutoCommit(true);
+                for (IndexDefinition index : DBInitializer.INDEXES) {
+                    PreparedStatement stmt = conn.prepareStatement(initializer.sqlIndexExists());
+                    stmt.setString(1, index.getTable());
+                    stmt.setString(2, index.getName());
+                    ResultSet rs = stmt.executeQuery();
+                    boolean found = rs.next();
+                    if (found && rs.getBoolean(1)) {
+                        continue;
+                    }
+                    try (Statement ddl = conn.createStatement()) {
+                        if (found) {
+                            // left invalid by a failed or interrupted online build, it is never used but
+                            // still maintained on every write, so build it again
+                            dropIndexOnline(ddl, initializer, index);
+                        }
+                        try {
+                            ddl.execute(initializer.sqlCreateIndexOnline(index));
+                        } catch (SQLException e) {
+                            // e.g. no online index builds in this edition
+                            ddl.execute(initializer.sqlCreateIndex(index));
+                        }
+                    }
+                    created.add(index.getName());
+                }
+                for (IndexDefinition index : DBInitializer.RETIRED_INDEXES) {
+                    PreparedStatement stmt = conn.prepareStatement(initializer.sqlIndexExists());
+                    stmt.setString(1, index.getTable());
+                    stmt.setString(2, index.getName());
+                    if (stmt.executeQuery().next()) {
+                        try (Statement ddl = conn.createStatement()) {
+                            dropIndexOnline(ddl, initializer, index);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                return new ApiResult(false, e.getMessage(), created);
+            }
+            return new ApiResult(true, "Migrate database successfully.", created);
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
+    }
 
-        // set card id back
+    private static void dropIndexOnline(Statement ddl, DBInitializer initializer, IndexDefinition index) throws SQLException {
         try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT card_id FROM card WHERE name = ? AND department = ? AND type = ?");
-            stmt.setString(1, card.getName());
-            stmt.setString(2, card.getDepartment());
-            stmt.setString(3, card.getType().getStr());
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                card.setCardId(rs.getInt("card_id"));
+            ddl.execute(initializer.sqlDropIndexOnline(index));
+        } catch (SQLException e) {
+            // e.g. no online index drops in this edition
+            ddl.execute(initializer.sqlDropIndex(index));
+        }
+    }
+
+    /**
+     * the SQL of a book query and its parameters, appended to params in
+     * order. candidates, if not null, restricts the query to these book
+     * ids, paged tells whether pageSize & pageToken apply. the SQL text
+     * only depends on the shape of the query, see SHAPE_*, so it is
+     * compiled once per shape.
+     */
+    private String bookQuerySql(BookQueryConditions conditions, IntHashSet candidates, boolean paged,
+                                List<Object> params) throws IllegalArgumentException {
+        if (conditions.getLimit() != null && conditions.getLimit() <= 0) {
+            throw new IllegalArgumentException("Limit must be positive.");
+        }
+        long shape = bookFilterShape(conditions, candidates) | bookOrderShape(conditions);
+        bindBookFilters(conditions, candidates, params);
+        Integer limit = conditions.getLimit();
+        // keyset seek: continue right after the last book of the previous page
+        if (paged && conditions.getPageToken() != null) {
+            PageToken token = PageToken.decode(conditions.getPageToken());
+            if (token.getSortBy() != conditions.getSortBy() || token.getSortOrder() != conditions.getSortOrder()) {
+                throw new IllegalArgumentException("Page token does not match the sort order.");
             }
-        } catch (Exception e) {
-            return new ApiResult(false, e.getMessage());
+            // the limit counts over all pages, the token carries what is left of it
+            limit = token.getRemaining();
+            shape |= SHAPE_PAGE_TOKEN;
+            if (token.getSortBy() == SortColumn.BOOK_ID) {
+                params.add(token.getLastBookId());
+            } else {
+                params.add(token.getLastValue());
+                params.add(token.getLastValue());
+                params.add(token.getLastBookId());
+            }
+        }
+        // the database stops after the rows shown, one extra row tells whether there is a next page
+        int rows = paged && conditions.getPageSize() != null ? conditions.getPageSize() + 1 : 0;
+        if (limit != null && (rows == 0 || limit < rows)) {
+            rows = limit;
+        }
+        if (rows > 0) {
+            shape |= SHAPE_LIMIT;
+            params.add(rows);
         }
-        return new ApiResult(true, "Register card successfully.");
+        return sqlTemplates.computeIfAbsent(shape, this::compileBookQuery);
     }
 
-    @Override
-    public ApiResult removeCard(int cardId) {
-        Connection conn = connector.getConn();
-        // Check if the card exists
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM card WHERE card_id = ?");
-            stmt.setInt(1, cardId);
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) {
-                return new ApiResult(false, "Card does not exist.");
+    /* one GROUP BY branch per facet, in the order of BookFacet, every branch binds the filters again */
+    private String facetBooksSql(BookQueryConditions conditions, IntHashSet candidates, Set<BookFacet> facets,
+                                 List<Object> params) {
+        long shape = bookFilterShape(conditions, candidates);
+        for (BookFacet facet : facets) {
+            shape |= SHAPE_FACET << facet.ordinal();
+            bindBookFilters(conditions, candidates, params);
+        }
+        return sqlTemplates.computeIfAbsent(shape, this::compileFacetBooks);
+    }
+
+    /* columns a projected query fetches, null to fetch all */
+    private static Set<SortColumn> projectionOf(BookQueryConditions conditions) {
+        if (conditions.getProjection() == null) {
+            return null;
+        }
+        Set<SortColumn> projection = EnumSet.of(SortColumn.BOOK_ID);
+        projection.addAll(conditions.getProjection());
+        // the page token carries the sort column value of the last row
+        if (conditions.getSortBy() != null) {
+            projection.add(conditions.getSortBy());
+        }
+        return projection;
+    }
+
+    private static Object[] bookFilters(BookQueryConditions conditions) {
+        return new Object[]{
+                conditions.getCategory(), conditions.getTitle(), conditions.getPress(), conditions.getMinPublishYear(),
+                conditions.getMaxPublishYear(), conditions.getAuthor(), conditions.getMinPrice(), conditions.getMaxPrice()
+        };
+    }
+
+    private static long bookFilterShape(BookQueryConditions conditions, IntHashSet candidates) {
+        long shape = 0;
+        Object[] filters = bookFilters(conditions);
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i] != null) {
+                shape |= 1L << i;
             }
-        } catch (Exception e) {
-            return new ApiResult(false, e.getMessage());
         }
+        if (candidates != null) {
+            shape |= (long) (Integer.numberOfTrailingZeros(inListLength(candidates.size())) + 1) << SHAPE_IN_LIST;
+        }
+        return shape;
+    }
 
-        // Check if the card have borrowed books and not returned
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM borrow WHERE card_id = ? AND return_time = 0");
-            stmt.setInt(1, cardId);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return new ApiResult(false, "Card has borrowed books and not returned.");
+    private static long bookOrderShape(BookQueryConditions conditions) {
+        long shape = 0;
+        Set<SortColumn> projection = projectionOf(conditions);
+        if (projection != null) {
+            for (SortColumn column : projection) {
+                shape |= 1L << (SHAPE_PROJECTION + column.ordinal());
             }
-        } catch (Exception e) {
+        }
+        if (conditions.getSortBy() != null) {
+            shape |= (long) (conditions.getSortBy().ordinal() + 1) << SHAPE_SORT_BY;
+        }
+        if (conditions.getSortOrder() != null) {
+            shape |= (long) (conditions.getSortOrder().ordinal() + 1) << SHAPE_SORT_ORDER;
+        }
+        return shape;
+    }
+
+    /* IN lists are padded to a power of two, so that a few SQL texts cover every number of values */
+    private static int inListLength(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /* bind the parameters of the WHERE clause of compileBookFilter, in the same order */
+    private static void bindBookFilters(BookQueryConditions conditions, IntHashSet candidates, List<Object> params) {
+        if (candidates != null) {
+            int last = 0;
+            // ascending, so that equal candidate sets bind equal parameters
+            for (int bookId : candidates.toArray()) {
+                params.add(bookId);
+                last = bookId;
+            }
+            // padding repeats an id, which does not change the result
+            for (int i = candidates.size(); i < inListLength(candidates.size()); i++) {
+                params.add(last);
+            }
+        }
+        Object[] filters = bookFilters(conditions);
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i] == null) {
+                continue;
+            }
+            params.add(FILTER_SQL[i].endsWith("LIKE ?") ? "%" + filters[i] + "%" : filters[i]);
+        }
+    }
+
+    private String compileBookQuery(long shape) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        int projection = (int) (shape >>> SHAPE_PROJECTION & 0xFF);
+        if (projection == 0) {
+            sql.append('*');
+        } else {
+            for (SortColumn column : SortColumn.values()) {
+                if ((projection & 1 << column.ordinal()) != 0) {
+                    sql.append(column == SortColumn.BOOK_ID ? "" : ", ").append(column.getValue());
+                }
+            }
+        }
+        sql.append(" FROM book");
+        compileBookFilter(sql, shape);
+        int sortBy = (int) (shape >>> SHAPE_SORT_BY & 0xF) - 1;
+        int sortOrder = (int) (shape >>> SHAPE_SORT_ORDER & 0x3) - 1;
+        String column = sortBy < 0 ? null : SortColumn.values()[sortBy].getValue();
+        if ((shape & SHAPE_PAGE_TOKEN) != 0) {
+            String op = sortOrder == SortOrder.DESC.ordinal() ? "<" : ">";
+            if (sortBy == SortColumn.BOOK_ID.ordinal()) {
+                sql.append(" AND book_id ").append(op).append(" ?");
+            } else {
+                sql.append(" AND (").append(column).append(' ').append(op).append(" ? OR (")
+                        .append(column).append(" = ? AND book_id > ?))");
+            }
+        }
+        if (column != null) {
+            sql.append(" ORDER BY ").append(column);
+        }
+        if (sortOrder >= 0) {
+            sql.append(' ').append(SortOrder.values()[sortOrder].getValue());
+        }
+        if (sortBy != SortColumn.BOOK_ID.ordinal()) {
+            sql.append(", book_id");
+        }
+        if ((shape & SHAPE_LIMIT) != 0) {
+            sql.append(connector.getConf().getType().limitClause());
+        }
+        return sql.toString();
+    }
+
+    private String compileFacetBooks(long shape) {
+        StringBuilder sql = new StringBuilder();
+        for (BookFacet facet : BookFacet.values()) {
+            if ((shape & SHAPE_FACET << facet.ordinal()) == 0) {
+                continue;
+            }
+            // year values & string values get a column each
+            boolean year = facet == BookFacet.PUBLISH_YEAR;
+            if (sql.length() > 0) {
+                sql.append(" UNION ALL ");
+            }
+            sql.append("SELECT ").append(facet.ordinal()).append(" AS facet, ")
+                    .append(year ? "NULL" : facet.getValue()).append(" AS str_value, ")
+                    .append(year ? facet.getValue() : "NULL").append(" AS int_value, COUNT(*) AS cnt FROM book");
+            compileBookFilter(sql, shape);
+            sql.append(" GROUP BY ").append(facet.getValue());
+        }
+        return sql.append(" ORDER BY facet, cnt DESC, str_value, int_value").toString();
+    }
+
+    /* "(?, ?, ..., ?)" for n values, padded to inListLength(n) parameters so that few texts are prepared */
+    private static String inList(int n) {
+        StringBuilder sql = new StringBuilder("(?");
+        for (int i = 1; i < inListLength(n); i++) {
+            sql.append(", ?");
+        }
+        return sql.append(')').toString();
+    }
+
+    /* bind ids to the parameters of inList(ids.size()) after offset, the padding repeats the last id */
+    private static void bindInList(PreparedStatement stmt, int offset, List<Integer> ids) throws SQLException {
+        for (int i = 0; i < inListLength(ids.size()); i++) {
+            stmt.setInt(offset + i + 1, ids.get(Math.min(i, ids.size() - 1)));
+        }
+    }
+
+    /* the WHERE clause selecting the books that match the filters */
+    private static void compileBookFilter(StringBuilder sql, long shape) {
+        sql.append(" WHERE 1 = 1");
+        int inList = (int) (shape >>> SHAPE_IN_LIST & 0xF);
+        // ids found by the search index, the LIKE filters below then only check these rows
+        if (inList > 0) {
+            sql.append(" AND book_id IN (?");
+            for (int i = 1; i < 1 << (inList - 1); i++) {
+                sql.append(", ?");
+            }
+            sql.append(')');
+        }
+        for (int i = 0; i < FILTER_SQL.length; i++) {
+            if ((shape & 1L << i) != 0) {
+                sql.append(FILTER_SQL[i]);
+            }
+        }
+    }
+
+    /**
+     * run a query on a connection of its own and map its rows lazily while
+     * the stream is consumed. the driver is told to stream the result
+     * instead of buffering it, and closing the stream releases the
+     * connection.
+     */
+    private <T> ApiResult streamRows(String sql, List<Object> params, RowMapper<T> mapper) {
+        Connection conn;
+        try {
+            conn = connector.getConn();
+        } catch (SQLException e) {
             return new ApiResult(false, e.getMessage());
         }
-        // Remove card
         try {
-            PreparedStatement stmt = conn.prepareStatement("DELETE FROM card WHERE card_id = ?");
-            stmt.setInt(1, cardId);
-            stmt.executeUpdate();
-            commit(conn);
+            // not taken from the statement cache, a streaming result keeps the statement busy
+            PreparedStatement stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            connector.getConf().getType().configureStreaming(stmt);
+            for (int i = 0; i < params.size(); i++) {
+                stmt.setObject(i + 1, params.get(i));
+            }
+            ResultSet rs = stmt.executeQuery();
+            Spliterator<T> rows = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+                @Override
+                public boolean tryAdvance(Consumer<? super T> action) {
+                    try {
+                        if (!rs.next()) {
+                            return false;
+                        }
+                        action.accept(mapper.map(rs));
+                        return true;
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            Stream<T> stream = StreamSupport.stream(rows, false).onClose(() -> {
+                try {
+                    rs.close();
+                    stmt.close();
+                    conn.close();
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            });
+            return new ApiResult(true, "Open stream successfully.", stream);
         } catch (Exception e) {
-            rollback(conn);
+            try {
+                conn.close();
+            } catch (SQLException ignored) {
+            }
             return new ApiResult(false, e.getMessage());
         }
-        return new ApiResult(true, "Remove card successfully.");
     }
 
-    @Override
-    public ApiResult showCards() {
-        Connection conn = connector.getConn();
-        List<Card> cards = new ArrayList<>();
-        // show all cards
-        try {
-            PreparedStatement stmt = conn.prepareStatement("SELECT * FROM card ORDER BY card_id ASC");
+    private Book mapBook(ResultSet rs) throws SQLException {
+        Book book = new Book();
+        book.setBookId(rs.getInt("book_id"));
+        book.setCategory(dictionary.intern(rs.getString("category")));
+        book.setTitle(rs.getString("title"));
+        book.setPress(dictionary.intern(rs.getString("press")));
+        book.setPublishYear(rs.getInt("publish_year"));
+        book.setAuthor(dictionary.intern(rs.getString("author")));
+        book.setPrice(rs.getDouble("price"));
+        book.setStock(rs.getInt("stock"));
+        return book;
+    }
+
+    /* append the current row of a projected query */
+    private void readRow(ResultSet rs, BookRows rows) throws SQLException {
+        int row = rows.addRow();
+        for (SortColumn column : rows.getColumns()) {
+            if (BookRows.isInt(column)) {
+                rows.setInt(row, column, rs.getInt(column.getValue()));
+            } else if (BookRows.isDouble(column)) {
+                rows.setDouble(row, column, rs.getDouble(column.getValue()));
+            } else if (column == SortColumn.TITLE) {
+                rows.setString(row, column, rs.getString(column.getValue()));
+            } else {
+                rows.setString(row, column, dictionary.intern(rs.getString(column.getValue())));
+            }
+        }
+    }
+
+    private BorrowHistories.Item mapBorrowItem(ResultSet rs) throws SQLException {
+        BorrowHistories.Item item = new BorrowHistories.Item();
+        item.setCardId(rs.getInt("card_id"));
+        item.setBookId(rs.getInt("book_id"));
+        item.setBorrowTime(rs.getLong("borrow_time"));
+        item.setReturnTime(rs.getLong("return_time"));
+        item.setCategory(dictionary.intern(rs.getString("category")));
+        item.setTitle(rs.getString("title"));
+        item.setPress(dictionary.intern(rs.getString("press")));
+        item.setPublishYear(rs.getInt("publish_year"));
+        item.setAuthor(dictionary.intern(rs.getString("author")));
+        item.setPrice(rs.getDouble("price"));
+        return item;
+    }
+
+    /**
+     * resolve the title, press & author filters to the ids of the matching
+     * books through the search index, loading it first if necessary.
+     * returns null if the index cannot narrow the query down.
+     */
+    private IntHashSet indexCandidates(Connection conn, BookQueryConditions conditions) throws SQLException {
+        if (!connector.getConf().isSearchIndex()) {
+            return null;
+        }
+        String[] filters = new String[3];
+        filters[INDEX_TITLE] = conditions.getTitle();
+        filters[INDEX_PRESS] = conditions.getPress();
+        filters[INDEX_AUTHOR] = conditions.getAuthor();
+        IntHashSet candidates = null;
+        for (int field = 0; field < filters.length; field++) {
+            String text = filters[field];
+            // wildcards in the text are matched by LIKE, not literally
+            if (text == null || text.contains("%") || text.contains("_") || text.contains("\\")) {
+                continue;
+            }
+            searchIndex.ensureLoaded(index -> loadSearchIndex(conn, index));
+            IntHashSet ids = searchIndex.search(field, text);
+            if (ids == null) {
+                continue;
+            }
+            if (candidates == null) {
+                candidates = ids;
+            } else {
+                candidates.retainAll(ids);
+            }
+        }
+        if (candidates != null && candidates.size() > MAX_INDEX_CANDIDATES) {
+            return null;
+        }
+        return candidates;
+    }
+
+    private void loadSearchIndex(Connection conn, TrigramIndex index) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT book_id, title, press, author FROM book");
+        ResultSet rs = stmt.executeQuery();
+        while (rs.next()) {
+            index.put(rs.getInt("book_id"), rs.getString("title"), rs.getString("press"), rs.getString("author"));
+        }
+    }
+
+    private void indexBook(Book book) {
+        searchIndex.put(book.getBookId(), book.getTitle(), book.getPress(), book.getAuthor());
+    }
+
+    /**
+     * read-through lookup of a book by id, null if it does not exist.
+     * a book read from the database is cached unless it was invalidated
+     * while being read.
+     */
+    private Book findBook(Connection conn, int bookId) throws SQLException {
+        Book book = bookCache.get(bookId);
+        if (book != null) {
+            return book;
+        }
+        long stamp = bookCache.stamp(bookId);
+        PreparedStatement stmt = conn.prepareStatement("SELECT * FROM book WHERE book_id = ?");
+        stmt.setInt(1, bookId);
+        ResultSet rs = stmt.executeQuery();
+        if (!rs.next()) {
+            return null;
+        }
+        book = mapBook(rs);
+        bookCache.put(book, stamp);
+        return book;
+    }
+
+    /* deep copy, cached results must not be changed by callers */
+    private BookQueryResults copyResults(BookQueryResults results) {
+        if (results.getRows() != null) {
+            // read-only, every read makes new Books anyway
+            return new BookQueryResults(results.getRows(), results.getNextPageToken());
+        }
+        List<Book> books = new ArrayList<>(results.getCount());
+        for (Book book : results.getResults()) {
+            books.add(book.clone());
+        }
+        return new BookQueryResults(books, results.getNextPageToken());
+    }
+
+    /* tell why a conditional stock update matched no row, only called on failure */
+    private String incBookStockFailure(Connection conn, int bookId) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT stock FROM book WHERE book_id = ?");
+        stmt.setInt(1, bookId);
+        ResultSet rs = stmt.executeQuery();
+        return rs.next() ? "Stock cannot be negative." : "Book not found.";
+    }
+
+    /* insert books in one batch and store the generated book ids back */
+    private void insertBooks(Connection conn, List<Book> books) throws SQLException {
+        if (!connector.getConf().getType().supportsBatchGeneratedKeys()) {
+            insertBooksWithOutput(conn, books);
+            return;
+        }
+        PreparedStatement stmt = conn.prepareStatement(INSERT_BOOK, Statement.RETURN_GENERATED_KEYS);
+        for (Book book : books) {
+            bindBook(stmt, 0, book);
+            stmt.addBatch();
+        }
+        stmt.executeBatch();
+        // keys come back in the order the rows were batched
+        ResultSet keys = stmt.getGeneratedKeys();
+        for (Book book : books) {
+            if (!keys.next()) {
+                throw new SQLException("No book_id generated.");
+            }
+            book.setBookId(keys.getInt(1));
+        }
+    }
+
+    /* load books through the native bulk-load path, then read all new book ids in one query */
+    private void bulkLoadBooks(Connection conn, BulkLoader loader, List<Book> books) throws SQLException {
+        PreparedStatement stmt = conn.prepareStatement("SELECT COALESCE(MAX(book_id), 0) FROM book");
+        ResultSet rs = stmt.executeQuery();
+        rs.next();
+        int maxBookId = rs.getInt(1);
+        loader.load(conn, books);
+        Map<Book, Book> pending = new HashMap<>();
+        for (Book book : books) {
+            pending.put(book, book);
+        }
+        stmt = conn.prepareStatement("SELECT book_id, category, title, press, publish_year, author FROM book WHERE book_id > ?");
+        stmt.setInt(1, maxBookId);
+        rs = stmt.executeQuery();
+        while (rs.next()) {
+            Book key = new Book(rs.getString(2), rs.getString(3), rs.getString(4), rs.getInt(5), rs.getString(6), 0, 0);
+            Book book = pending.remove(key);
+            if (book != null) {
+                book.setBookId(rs.getInt(1));
+            }
+        }
+        if (!pending.isEmpty()) {
+            throw new SQLException("No book_id generated.");
+        }
+    }
+
+    /**
+     * multi-row insert that reads the new book ids from an OUTPUT clause,
+     * for drivers that cannot return generated keys of a batch. rows are
+     * matched back by the unique key since OUTPUT does not keep row order.
+     */
+    private void insertBooksWithOutput(Connection conn, List<Book> books) throws SQLException {
+        for (int from = 0; from < books.size(); ) {
+            int rows = Math.min(OUTPUT_INSERT_ROWS, Integer.highestOneBit(books.size() - from));
+            List<Book> chunk = books.subList(from, from + rows);
+            from += rows;
+            StringBuilder sql = new StringBuilder("INSERT INTO book (category, title, press, publish_year, author, price, stock) " +
+                    "OUTPUT INSERTED.book_id, INSERTED.category, INSERTED.title, INSERTED.press, INSERTED.publish_year, INSERTED.author " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?)");
+            for (int i = 1; i < chunk.size(); i++) {
+                sql.append(", (?, ?, ?, ?, ?, ?, ?)");
+            }
+            PreparedStatement stmt = conn.prepareStatement(sql.toString());
+            Map<Book, Book> pending = new HashMap<>();
+            for (int i = 0; i < chunk.size(); i++) {
+                bindBook(stmt, i * 7, chunk.get(i));
+                pending.put(chunk.get(i), chunk.get(i));
+            }
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
-                Card card = new Card();
-                card.setCardId(rs.getInt("card_id"));
-                card.setName(rs.getString("name"));
-                card.setDepartment(rs.getString("department"));
-                card.setType(CardType.values(rs.getString("type")));
-                cards.add(card);
+                Book key = new Book(rs.getString(2), rs.getString(3), rs.getString(4), rs.getInt(5), rs.getString(6), 0, 0);
+                Book book = pending.remove(key);
+                if (book != null) {
+                    book.setBookId(rs.getInt(1));
+                }
+            }
+            if (!pending.isEmpty()) {
+                throw new SQLException("No book_id generated.");
             }
-        } catch (Exception e) {
-            return new ApiResult(false, e.getMessage());
         }
-        return new ApiResult(true, "Show cards successfully.", new CardList(cards));
     }
 
-    @Override
-    public ApiResult resetDatabase() {
-        Connection conn = connector.getConn();
-        try {
-            Statement stmt = conn.createStatement();
-            DBInitializer initializer = connector.getConf().getType().getDbInitializer();
-            stmt.addBatch(initializer.sqlDropBorrow());
-            stmt.addBatch(initializer.sqlDropBook());
-            stmt.addBatch(initializer.sqlDropCard());
-            stmt.addBatch(initializer.sqlCreateCard());
-            stmt.addBatch(initializer.sqlCreateBook());
-            stmt.addBatch(initializer.sqlCreateBorrow());
-            stmt.executeBatch();
-            commit(conn);
-        } catch (Exception e) {
-            rollback(conn);
-            return new ApiResult(false, e.getMessage());
+    /* bind category...stock of a book to the 7 parameters after offset */
+    private void bindBook(PreparedStatement stmt, int offset, Book book) throws SQLException {
+        stmt.setString(offset + 1, book.getCategory());
+        stmt.setString(offset + 2, book.getTitle());
+        stmt.setString(offset + 3, book.getPress());
+        stmt.setInt(offset + 4, book.getPublishYear());
+        stmt.setString(offset + 5, book.getAuthor());
+        stmt.setDouble(offset + 6, book.getPrice());
+        stmt.setInt(offset + 7, book.getStock());
+    }
+
+    /* a cached query result, with the order it was sorted in */
+    private static final class CachedQuery {
+
+        private final BookQueryResults results;
+        private final SortColumn sortBy;
+        private final SortOrder sortOrder;
+
+        CachedQuery(BookQueryResults results, SortColumn sortBy, SortOrder sortOrder) {
+            this.results = results;
+            this.sortBy = sortBy;
+            this.sortOrder = sortOrder == null ? SortOrder.ASC : sortOrder;
+        }
+
+        /**
+         * copies of the first conditions.limit books of a whole result in
+         * the order of conditions, or null if that order cannot be derived
+         * here: strings are compared by the database collation, so only a
+         * prefix of the same order is taken for them, numbers may be
+         * re-sorted.
+         */
+        List<Book> select(BookQueryConditions conditions) {
+            SortColumn sortBy = conditions.getSortBy();
+            SortOrder sortOrder = conditions.getSortOrder() == null ? SortOrder.ASC : conditions.getSortOrder();
+            List<Book> books = results.getResults();
+            int limit = conditions.getLimit() == null ? books.size() : Math.min(conditions.getLimit(), books.size());
+            List<Book> selected;
+            if (sortBy == this.sortBy && sortOrder == this.sortOrder) {
+                selected = books.subList(0, limit);
+            } else if (sortBy != null && (BookRows.isInt(sortBy) || BookRows.isDouble(sortBy))) {
+                Comparator<Book> order = sortBy.getComparator();
+                if (sortOrder == SortOrder.DESC) {
+                    order = order.reversed();
+                }
+                // ties by book_id, same as the database
+                selected = TopN.of(books, limit, order.thenComparingInt(Book::getBookId));
+            } else {
+                return null;
+            }
+            List<Book> copies = new ArrayList<>(selected.size());
+            for (Book book : selected) {
+                copies.add(book.clone());
+            }
+            return copies;
         }
-        return new ApiResult(true, null);
+    }
+
+    private interface RowMapper<T> {
+        T map(ResultSet rs) throws SQLException;
     }
 
     private void rollback(Connection conn) {
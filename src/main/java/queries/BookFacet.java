@@ -0,0 +1,19 @@
+package queries;
+
+/* book attributes that search results can be counted by */
+public enum BookFacet {
+    CATEGORY("category"),
+    PRESS("press"),
+    AUTHOR("author"),
+    PUBLISH_YEAR("publish_year");
+
+    private final String value;
+
+    public String getValue() {
+        return value;
+    }
+
+    BookFacet(String value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,63 @@
+package queries;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+public class BookFacets {
+
+    public static class Bucket {
+        private Object value;   /* a String, or an Integer for PUBLISH_YEAR */
+        private long count;     /* number of matching books with this value */
+
+        public Bucket() {
+        }
+
+        public Bucket(Object value, long count) {
+            this.value = value;
+            this.count = count;
+        }
+
+        @Override
+        public String toString() {
+            return "Bucket {" + "value=" + value +
+                    ", count=" + count +
+                    '}';
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        public void setValue(Object value) {
+            this.value = value;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public void setCount(long count) {
+            this.count = count;
+        }
+    }
+
+    /* buckets of each requested facet, by count desc, value asc */
+    private final Map<BookFacet, List<Bucket>> facets = new EnumMap<>(BookFacet.class);
+
+    public BookFacets(BookFacet... facets) {
+        for (BookFacet facet : facets) {
+            this.facets.put(facet, new ArrayList<>());
+        }
+    }
+
+    /* buckets of a requested facet, null if it was not requested */
+    public List<Bucket> getBuckets(BookFacet facet) {
+        return facets.get(facet);
+    }
+
+    public Map<BookFacet, List<Bucket>> getFacets() {
+        return facets;
+    }
+}
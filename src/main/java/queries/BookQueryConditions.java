@@ -2,6 +2,9 @@ package queries;
 
 import entities.Book;
 
+import java.util.EnumSet;
+import java.util.Set;
+
 /**
  * Note: (1) all non-null attributes should be used as query
  *       conditions and connected by "AND" operations.
@@ -28,6 +31,14 @@ public class BookQueryConditions {
     private Book.SortColumn sortBy;
     /* default sort by PK */
     private SortOrder sortOrder;
+    /* max number of books per page, null to return all books at once */
+    private Integer pageSize;
+    /* BookQueryResults.nextPageToken of the previous page, null for the first page */
+    private String pageToken;
+    /* max number of books to return, null for no limit */
+    private Integer limit;
+    /* columns to fetch, null for all of them. book_id & the sort column are always fetched */
+    private Set<Book.SortColumn> projection;
 
     public BookQueryConditions() {
         this.category = null;
@@ -40,6 +51,10 @@ public class BookQueryConditions {
         this.maxPrice = null;
         sortBy = Book.SortColumn.BOOK_ID;
         sortOrder = SortOrder.ASC;
+        pageSize = null;
+        pageToken = null;
+        limit = null;
+        projection = null;
     }
 
     public String getCategory() {
@@ -121,4 +136,62 @@ public class BookQueryConditions {
     public void setSortOrder(SortOrder sortOrder) {
         this.sortOrder = sortOrder;
     }
+
+    public Integer getPageSize() {
+        return pageSize;
+    }
+
+    public void setPageSize(Integer pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public String getPageToken() {
+        return pageToken;
+    }
+
+    public void setPageToken(String pageToken) {
+        this.pageToken = pageToken;
+    }
+
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+
+    public Set<Book.SortColumn> getProjection() {
+        return projection;
+    }
+
+    public void setProjection(Set<Book.SortColumn> projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * a key that is equal for conditions that select the same books in
+     * the same order, e.g. to cache query results by.
+     */
+    public String normalizedKey() {
+        return key(category, title, press, minPublishYear, maxPublishYear, author, minPrice, maxPrice,
+                sortBy, sortOrder == null ? SortOrder.ASC : sortOrder, pageSize, pageToken, limit,
+                projection == null ? null : EnumSet.copyOf(projection));
+    }
+
+    /* a key that is equal for conditions that select the same books, in whatever order or number */
+    public String filterKey() {
+        return key(category, title, press, minPublishYear, maxPublishYear, author, minPrice, maxPrice,
+                projection == null ? null : EnumSet.copyOf(projection));
+    }
+
+    private static String key(Object... values) {
+        StringBuilder key = new StringBuilder();
+        for (Object value : values) {
+            // length prefixed, so that no two different conditions join into the same key
+            String str = value == null ? "" : value.toString();
+            key.append(value == null ? -1 : str.length()).append(':').append(str);
+        }
+        return key.toString();
+    }
 }
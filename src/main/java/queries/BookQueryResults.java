@@ -8,12 +8,26 @@ public class BookQueryResults {
 
     private int count;   /* number of results, equal to results.size() */
     private List<Book> results;
+    /* pass to BookQueryConditions.pageToken to get the next page, null if this is the last page */
+    private String nextPageToken;
+    /* compact rows of a projected query, results is then a view over them */
+    private BookRows rows;
 
     public BookQueryResults(List<Book> results) {
         this.count = results.size();
         this.results = results;
     }
 
+    public BookQueryResults(List<Book> results, String nextPageToken) {
+        this(results);
+        this.nextPageToken = nextPageToken;
+    }
+
+    public BookQueryResults(BookRows rows, String nextPageToken) {
+        this(rows.asBooks(), nextPageToken);
+        this.rows = rows;
+    }
+
     public int getCount() {
         return count;
     }
@@ -29,4 +43,17 @@ public class BookQueryResults {
     public void setResults(List<Book> results) {
         this.results = results;
     }
+
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public void setNextPageToken(String nextPageToken) {
+        this.nextPageToken = nextPageToken;
+    }
+
+    /* null unless the query had a projection */
+    public BookRows getRows() {
+        return rows;
+    }
 }
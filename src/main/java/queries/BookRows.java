@@ -0,0 +1,162 @@
+package queries;
+
+import entities.Book;
+import entities.Book.SortColumn;
+
+import java.util.AbstractList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compact, column-wise rows of a projected book query: one primitive or
+ * String array per fetched column instead of one Book object per row.
+ * rows are only turned into Books when they are asked for.
+ *
+ * Note that the rows are read-only once the query has filled them in.
+ */
+public final class BookRows {
+
+    private final Set<SortColumn> columns;
+    /* by SortColumn ordinal: int[], double[] or String[], null if not fetched */
+    private final Object[] data = new Object[SortColumn.values().length];
+    private int size;
+
+    public BookRows(Set<SortColumn> columns) {
+        this.columns = EnumSet.copyOf(columns);
+        for (SortColumn column : this.columns) {
+            data[column.ordinal()] = newArray(column, 16);
+        }
+    }
+
+    public static boolean isInt(SortColumn column) {
+        return column == SortColumn.BOOK_ID || column == SortColumn.PUBLISH_YEAR || column == SortColumn.STOCK;
+    }
+
+    public static boolean isDouble(SortColumn column) {
+        return column == SortColumn.PRICE;
+    }
+
+    /* append an empty row, returns its index */
+    public int addRow() {
+        if (size == capacity()) {
+            for (SortColumn column : columns) {
+                Object array = data[column.ordinal()];
+                Object grown = newArray(column, size * 2);
+                System.arraycopy(array, 0, grown, 0, size);
+                data[column.ordinal()] = grown;
+            }
+        }
+        return size++;
+    }
+
+    public void removeLastRow() {
+        size--;
+        for (SortColumn column : columns) {
+            if (!isInt(column) && !isDouble(column)) {
+                ((String[]) data[column.ordinal()])[size] = null;
+            }
+        }
+    }
+
+    public void setInt(int row, SortColumn column, int value) {
+        ((int[]) data[column.ordinal()])[row] = value;
+    }
+
+    public void setDouble(int row, SortColumn column, double value) {
+        ((double[]) data[column.ordinal()])[row] = value;
+    }
+
+    public void setString(int row, SortColumn column, String value) {
+        ((String[]) data[column.ordinal()])[row] = value;
+    }
+
+    public int getInt(int row, SortColumn column) {
+        return ((int[]) data[column.ordinal()])[row];
+    }
+
+    public double getDouble(int row, SortColumn column) {
+        return ((double[]) data[column.ordinal()])[row];
+    }
+
+    public String getString(int row, SortColumn column) {
+        return ((String[]) data[column.ordinal()])[row];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Set<SortColumn> getColumns() {
+        return columns;
+    }
+
+    /* a Book with the fetched columns of a row, the others are left at their defaults */
+    public Book toBook(int row) {
+        Book book = new Book();
+        for (SortColumn column : columns) {
+            switch (column) {
+                case BOOK_ID:
+                    book.setBookId(getInt(row, column));
+                    break;
+                case CATEGORY:
+                    book.setCategory(getString(row, column));
+                    break;
+                case TITLE:
+                    book.setTitle(getString(row, column));
+                    break;
+                case PRESS:
+                    book.setPress(getString(row, column));
+                    break;
+                case PUBLISH_YEAR:
+                    book.setPublishYear(getInt(row, column));
+                    break;
+                case AUTHOR:
+                    book.setAuthor(getString(row, column));
+                    break;
+                case PRICE:
+                    book.setPrice(getDouble(row, column));
+                    break;
+                case STOCK:
+                    book.setStock(getInt(row, column));
+                    break;
+            }
+        }
+        return book;
+    }
+
+    /* a view that creates the Book of a row each time it is read */
+    public List<Book> asBooks() {
+        return new AbstractList<Book>() {
+            @Override
+            public Book get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Row " + index + " of " + size);
+                }
+                return toBook(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "BookRows {" + "columns=" + columns +
+                ", size=" + size +
+                '}';
+    }
+
+    private int capacity() {
+        SortColumn any = columns.iterator().next();
+        Object array = data[any.ordinal()];
+        return isInt(any) ? ((int[]) array).length : isDouble(any) ? ((double[]) array).length : ((String[]) array).length;
+    }
+
+    private static Object newArray(SortColumn column, int length) {
+        return isInt(column) ? new int[length] : isDouble(column) ? new double[length] : new String[length];
+    }
+}
@@ -0,0 +1,51 @@
+package queries;
+
+public class IngestResult {
+
+    private long rows;      /* number of books written & committed */
+    private int chunks;     /* number of chunks sent to the database */
+    private long elapsedMillis;
+
+    public IngestResult(long rows, int chunks, long elapsedMillis) {
+        this.rows = rows;
+        this.chunks = chunks;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public double getRowsPerSecond() {
+        return elapsedMillis == 0 ? rows * 1000.0 : rows * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "IngestResult {" + "rows=" + rows +
+                ", chunks=" + chunks +
+                ", elapsedMillis=" + elapsedMillis +
+                ", rowsPerSecond=" + String.format("%.1f", getRowsPerSecond()) +
+                '}';
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public void setRows(long rows) {
+        this.rows = rows;
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(int chunks) {
+        this.chunks = chunks;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+}
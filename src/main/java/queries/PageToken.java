@@ -0,0 +1,126 @@
+package queries;
+
+import entities.Book;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Continuation cursor of a paged book query: the sort key and book_id of
+ * the last book on the previous page. the next page starts right after
+ * it, so a deep page costs the same as the first one.
+ *
+ * Note:
+ *      (1) a limit counts over all pages, the token carries the number of
+ *          books it still allows, which replaces conditions.limit on the
+ *          pages after the first.
+ */
+public final class PageToken {
+
+    private final Book.SortColumn sortBy;
+    private final SortOrder sortOrder;
+    /* value of the sort column of the last book, an Integer, Double or String */
+    private final Object lastValue;
+    private final int lastBookId;
+    /* books the limit allows from the next page on, null if there is no limit */
+    private final Integer remaining;
+
+    public PageToken(Book.SortColumn sortBy, SortOrder sortOrder, Object lastValue, int lastBookId, Integer remaining) {
+        this.sortBy = sortBy;
+        this.sortOrder = sortOrder;
+        this.lastValue = lastValue;
+        this.lastBookId = lastBookId;
+        this.remaining = remaining;
+    }
+
+    /* the token of the page after the full page of conditions, which ended with the given book */
+    public static PageToken after(Book last, BookQueryConditions conditions) {
+        Integer limit = limitOf(conditions);
+        return new PageToken(conditions.getSortBy(), conditions.getSortOrder(), valueOf(last, conditions.getSortBy()),
+                last.getBookId(), limit == null ? null : limit - conditions.getPageSize());
+    }
+
+    /* the limit of the page of conditions: what its page token left of it, or conditions.limit on the first page */
+    public static Integer limitOf(BookQueryConditions conditions) throws IllegalArgumentException {
+        return conditions.getPageToken() == null ? conditions.getLimit() : decode(conditions.getPageToken()).remaining;
+    }
+
+    public static Object valueOf(Book book, Book.SortColumn column) {
+        switch (column) {
+            case BOOK_ID:
+                return book.getBookId();
+            case CATEGORY:
+                return book.getCategory();
+            case TITLE:
+                return book.getTitle();
+            case PRESS:
+                return book.getPress();
+            case PUBLISH_YEAR:
+                return book.getPublishYear();
+            case AUTHOR:
+                return book.getAuthor();
+            case PRICE:
+                return book.getPrice();
+            case STOCK:
+                return book.getStock();
+        }
+        throw new IllegalArgumentException("Unknown sort column.");
+    }
+
+    public String encode() {
+        String raw = sortBy.name() + "|" + sortOrder.name() + "|" + lastBookId + "|" +
+                (remaining == null ? "" : remaining) + "|" + lastValue;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static PageToken decode(String token) throws IllegalArgumentException {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            // the value goes last since a string value may contain the separator
+            String[] parts = raw.split("\\|", 5);
+            Book.SortColumn sortBy = Book.SortColumn.valueOf(parts[0]);
+            SortOrder sortOrder = SortOrder.valueOf(parts[1]);
+            int lastBookId = Integer.parseInt(parts[2]);
+            Integer remaining = parts[3].isEmpty() ? null : Integer.valueOf(parts[3]);
+            if (remaining != null && remaining <= 0) {
+                throw new IllegalArgumentException();
+            }
+            Object lastValue;
+            switch (sortBy) {
+                case BOOK_ID:
+                case PUBLISH_YEAR:
+                case STOCK:
+                    lastValue = Integer.parseInt(parts[4]);
+                    break;
+                case PRICE:
+                    lastValue = Double.parseDouble(parts[4]);
+                    break;
+                default:
+                    lastValue = parts[4];
+            }
+            return new PageToken(sortBy, sortOrder, lastValue, lastBookId, remaining);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid page token.");
+        }
+    }
+
+    public Book.SortColumn getSortBy() {
+        return sortBy;
+    }
+
+    public SortOrder getSortOrder() {
+        return sortOrder;
+    }
+
+    public Object getLastValue() {
+        return lastValue;
+    }
+
+    public int getLastBookId() {
+        return lastBookId;
+    }
+
+    public Integer getRemaining() {
+        return remaining;
+    }
+}
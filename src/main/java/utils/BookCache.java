@@ -0,0 +1,203 @@
+package utils;
+
+import entities.Book;
+import utils.primitive.IntIntHashMap;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of books by book_id, split into stripes that are locked
+ * independently so that concurrent lookups rarely contend.
+ *
+ * Note:
+ *      (1) books are copied in and out, callers may modify what they get.
+ *      (2) a read-through load must take a {@link #stamp} before reading
+ *          the database and store the result with {@link #put(Book, long)},
+ *          which is dropped if the book was invalidated in between, so a
+ *          slow reader cannot bring back a stale book.
+ *      (3) eviction is approximately LRU (CLOCK): a stripe keeps its books
+ *          in a ring with a referenced bit set by every hit, and evicts the
+ *          first book whose bit is clear, clearing the bits it passes. so a
+ *          hit only sets a bit instead of relinking an entry, and no boxed
+ *          key or entry object is kept per book.
+ */
+public final class BookCache {
+
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public BookCache(int capacity) {
+        // round up so that the stripes hold at least capacity books together
+        int stripeCapacity = (capacity + STRIPES - 1) / STRIPES;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    /* the cached copy of a book, or null on a miss */
+    public Book get(int bookId) {
+        Stripe stripe = stripe(bookId);
+        Book book;
+        synchronized (stripe) {
+            book = stripe.get(bookId);
+        }
+        if (book == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return book.clone();
+    }
+
+    /* taken before a book is read from the database, see put(Book, long) */
+    public long stamp(int bookId) {
+        Stripe stripe = stripe(bookId);
+        synchronized (stripe) {
+            return stripe.invalidations;
+        }
+    }
+
+    /* cache a book read from the database unless it was invalidated since stamp */
+    public void put(Book book, long stamp) {
+        Stripe stripe = stripe(book.getBookId());
+        synchronized (stripe) {
+            if (stripe.invalidations == stamp && stripe.capacity > 0) {
+                stripe.put(book.clone());
+            }
+        }
+    }
+
+    /* called after a change of the book is committed */
+    public void invalidate(int bookId) {
+        Stripe stripe = stripe(bookId);
+        synchronized (stripe) {
+            stripe.invalidations++;
+            stripe.remove(bookId);
+        }
+    }
+
+    public void invalidateAll() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.invalidations++;
+                stripe.clear();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.slots.size();
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripe(int bookId) {
+        // spread consecutive ids over all stripes
+        int h = bookId * 0x9E3779B9;
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private final class Stripe {
+
+        private final int capacity;
+        /* book_id -> position in the ring */
+        private final IntIntHashMap slots;
+        /* the clock, null where no book is kept */
+        private final Book[] ring;
+        private final boolean[] referenced;
+        private int hand;
+        /* bumped by every invalidation of a book in this stripe */
+        private long invalidations;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            this.slots = new IntIntHashMap(capacity);
+            this.ring = new Book[capacity];
+            this.referenced = new boolean[capacity];
+        }
+
+        Book get(int bookId) {
+            int slot = slots.getOrDefault(bookId, -1);
+            if (slot < 0) {
+                return null;
+            }
+            referenced[slot] = true;
+            return ring[slot];
+        }
+
+        void put(Book book) {
+            int slot = slots.getOrDefault(book.getBookId(), -1);
+            if (slot < 0) {
+                slot = freeSlot();
+                slots.put(book.getBookId(), slot);
+            }
+            ring[slot] = book;
+        }
+
+        void remove(int bookId) {
+            int slot = slots.getOrDefault(bookId, -1);
+            if (slot >= 0) {
+                slots.remove(bookId);
+                ring[slot] = null;
+                referenced[slot] = false;
+            }
+        }
+
+        void clear() {
+            slots.clear();
+            Arrays.fill(ring, null);
+            Arrays.fill(referenced, false);
+        }
+
+        /* the slot for a new book, evicting one if the stripe is full */
+        private int freeSlot() {
+            boolean full = slots.size() >= capacity;
+            while (true) {
+                int slot = hand;
+                hand = (hand + 1) % capacity;
+                if (ring[slot] == null) {
+                    return slot;
+                }
+                if (!full) {
+                    continue;
+                }
+                if (referenced[slot]) {
+                    // second chance
+                    referenced[slot] = false;
+                    continue;
+                }
+                slots.remove(ring[slot].getBookId());
+                ring[slot] = null;
+                evictions.incrementAndGet();
+                return slot;
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package utils;
+
+import entities.Book;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Native bulk-load path of a database, much faster than batched INSERTs
+ * for hundreds of thousands of rows.
+ *
+ * Note that:
+ *      (1) rows are written within the current transaction of conn, the
+ *          caller commits or rolls back.
+ *      (2) book ids are not returned, the caller has to read them back.
+ *      (3) a duplicate book must fail the load instead of being skipped.
+ */
+public interface BulkLoader {
+
+    /**
+     * @return number of rows written to the book table
+     */
+    long load(Connection conn, List<Book> books) throws SQLException;
+
+}
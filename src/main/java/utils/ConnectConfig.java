@@ -16,6 +16,26 @@ public final class ConnectConfig {
     private final String password;
     private final String db;
     private final DatabaseType type;
+    /* connection pool settings */
+    private final int poolSize;
+    private final long maxWait;
+    private final long idleTimeout;
+    private final int statementCacheSize;
+    /* storeBook(List) switches to the native bulk loader from this many books, 0 to disable */
+    private final int bulkLoadThreshold;
+    /* books kept in the book cache, 0 to disable */
+    private final int bookCacheSize;
+    /* books held by the query result cache over all entries, 0 to disable (the default), and entry lifetime.
+       only changes made through this process are seen at once, others only when entries expire */
+    private final int queryCacheRows;
+    private final long queryCacheTtl;
+    /* keep an in-memory trigram index for fuzzy book search, off by default:
+       only safe if nothing else writes the book table, other writers' books would be missed */
+    private final boolean searchIndex;
+    /* directory of the write-ahead log & snapshot of the "memory" type, null to keep nothing,
+       and the number of logged changes after which a snapshot is written */
+    private final String dataDir;
+    private final long snapshotRecords;
 
     public ConnectConfig() throws FileNotFoundException, NullPointerException, ClassNotFoundException {
         URL res = ConnectConfig.class.getClassLoader().getResource("application.yaml");
@@ -32,8 +52,21 @@ public final class ConnectConfig {
         password = (String)objectMap.getOrDefault("password", "");
         db = (String)objectMap.getOrDefault("db", "library");
         type = DatabaseType.instance((String)objectMap.getOrDefault("type", "mysql"));
+        poolSize = ((Number)objectMap.getOrDefault("pool_size", 8)).intValue();
+        maxWait = ((Number)objectMap.getOrDefault("max_wait", 30000)).longValue();
+        idleTimeout = ((Number)objectMap.getOrDefault("idle_timeout", 600000)).longValue();
+        statementCacheSize = ((Number)objectMap.getOrDefault("statement_cache_size", 64)).intValue();
+        bulkLoadThreshold = ((Number)objectMap.getOrDefault("bulk_load_threshold", 10000)).intValue();
+        bookCacheSize = ((Number)objectMap.getOrDefault("book_cache_size", 10000)).intValue();
+        queryCacheRows = ((Number)objectMap.getOrDefault("query_cache_rows", 0)).intValue();
+        queryCacheTtl = ((Number)objectMap.getOrDefault("query_cache_ttl", 60000)).longValue();
+        searchIndex = (Boolean)objectMap.getOrDefault("search_index", false);
+        dataDir = (String)objectMap.get("data_dir");
+        snapshotRecords = ((Number)objectMap.getOrDefault("snapshot_records", 100000)).longValue();
         /* load database connect driver */
-        Class.forName(type.getDriverName());
+        if (type.getDriverName() != null) {
+            Class.forName(type.getDriverName());
+        }
     }
 
     @Override
@@ -44,6 +77,17 @@ public final class ConnectConfig {
                 ", password='" + password + '\'' +
                 ", db='" + db + '\'' +
                 ", type='" + type.toString() + '\'' +
+                ", poolSize=" + poolSize +
+                ", maxWait=" + maxWait +
+                ", idleTimeout=" + idleTimeout +
+                ", statementCacheSize=" + statementCacheSize +
+                ", bulkLoadThreshold=" + bulkLoadThreshold +
+                ", bookCacheSize=" + bookCacheSize +
+                ", queryCacheRows=" + queryCacheRows +
+                ", queryCacheTtl=" + queryCacheTtl +
+                ", searchIndex=" + searchIndex +
+                ", dataDir='" + dataDir + '\'' +
+                ", snapshotRecords=" + snapshotRecords +
                 '}';
     }
 
@@ -70,4 +114,48 @@ public final class ConnectConfig {
     public DatabaseType getType() {
         return type;
     }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public int getBulkLoadThreshold() {
+        return bulkLoadThreshold;
+    }
+
+    public int getBookCacheSize() {
+        return bookCacheSize;
+    }
+
+    public int getQueryCacheRows() {
+        return queryCacheRows;
+    }
+
+    public long getQueryCacheTtl() {
+        return queryCacheTtl;
+    }
+
+    public String getDataDir() {
+        return dataDir;
+    }
+
+    public long getSnapshotRecords() {
+        return snapshotRecords;
+    }
+
+    public boolean isSearchIndex() {
+        return searchIndex;
+    }
 }
@@ -1,12 +1,68 @@
 package utils;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public interface DBInitializer {
 
+    /**
+     * secondary indexes derived from the queries of the library:
+     *      borrow (card_id, borrow_time): borrow history of a card in time order
+     *      borrow (book_id): borrow records of a book, deleted with it by
+     *          removeBook through the foreign key, whose index it is on MySQL
+     *      book (price), book (publish_year): range filters of queryBook
+     *      active_loan (book_id): unreturned copies of a book, checked by removeBook
+     * category filters are served by the unique key, which starts with category.
+     */
+    List<IndexDefinition> INDEXES = Collections.unmodifiableList(Arrays.asList(
+            new IndexDefinition("idx_borrow_card_time", "borrow", "card_id", "borrow_time"),
+            new IndexDefinition("idx_borrow_book", "borrow", "book_id"),
+            new IndexDefinition("idx_book_price", "book", "price"),
+            new IndexDefinition("idx_book_publish_year", "book", "publish_year"),
+            new IndexDefinition("idx_active_loan_book", "active_loan", "book_id")
+    ));
+
+    /* indexes of older versions, dropped by migrateDatabase once the ones replacing them exist */
+    List<IndexDefinition> RETIRED_INDEXES = Collections.singletonList(
+            // open loans are looked up in active_loan, not by return_time = 0, see idx_borrow_book
+            new IndexDefinition("idx_borrow_book_return", "borrow", "book_id", "return_time")
+    );
+
     String sqlDropBook();
     String sqlDropCard();
     String sqlDropBorrow();
+    String sqlDropActiveLoan();
     String sqlCreateBook();
     String sqlCreateCard();
     String sqlCreateBorrow();
 
+    /*
+     * the books borrowed and not returned yet, one row per (card, book). a
+     * loan is recorded in borrow when it is returned, the borrow history of
+     * a card is both tables together.
+     */
+    String sqlCreateActiveLoan();
+
+    /* create an index on a new, empty table */
+    String sqlCreateIndex(IndexDefinition index);
+
+    /* create an index on a table in use without blocking its readers & writers, run outside a transaction */
+    String sqlCreateIndexOnline(IndexDefinition index);
+
+    String sqlDropIndex(IndexDefinition index);
+
+    /* drop an index of a table in use without blocking its readers & writers, run outside a transaction */
+    String sqlDropIndexOnline(IndexDefinition index);
+
+    /*
+     * returns a row iff the index exists, parameters: table name, index name.
+     * its first column is false if the index cannot be used, e.g. postgres
+     * keeps an invalid index behind when a concurrent build fails.
+     */
+    String sqlIndexExists();
+
+    /* returns a row iff the table exists, parameter: table name */
+    String sqlTableExists();
+
 }
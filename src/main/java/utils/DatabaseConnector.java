@@ -1,55 +1,334 @@
 package utils;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A bounded pool of JDBC connections.
+ *
+ * Note:
+ *      (1) every call of {@link #getConn()} leases a connection of its own,
+ *          which must be handed back by calling close() on it. closing a
+ *          leased connection returns it to the pool instead of closing the
+ *          physical connection.
+ *      (2) a connection that comes back with an unfinished transaction
+ *          is rolled back before it can be leased again.
+ *      (3) idle connections are evicted after idleTimeout milliseconds and
+ *          validated on borrow if they have been idle for a while.
+ *      (4) prepareStatement(sql) and prepareStatement(sql, autoGeneratedKeys)
+ *          on a leased connection are served from a per-connection LRU
+ *          cache, so callers should not close the statements they get.
+ *          without a cache they are closed when the connection is handed
+ *          back.
+ *      (5) the bulk loader gets a connection of its own from
+ *          {@link #openBulkLoadConn()}, outside the pool, so that the driver
+ *          options it needs are never set on the pooled connections.
+ */
 public class DatabaseConnector {
 
+    /* connections idle for less than this are handed out without validation */
+    private static final long VALIDATION_INTERVAL_MILLIS = 1000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 3;
+
     private final ConnectConfig conf;
-    private Connection conn;
+    /* most recently used connections at the head, evicted from the tail */
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    /* one permit per connection that may be leased, null if not connected */
+    private volatile Semaphore permits;
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
 
     public DatabaseConnector(ConnectConfig conf) {
         this.conf = conf;
     }
 
-    public boolean connect() {
-        if (conn != null) {
+    public synchronized boolean connect() {
+        if (permits != null) {
             return false;
         }
+        if (conf.getType().isInMemory()) {
+            // nothing to connect to, the permits only mark the connector as connected
+            permits = new Semaphore(conf.getPoolSize(), true);
+            return true;
+        }
         try {
-            String url = conf.getType().url(conf.getHost(), conf.getPort(), conf.getDB());
-            conn = DriverManager.getConnection(url, conf.getUser(), conf.getPassword());
-            if (conn != null) {
-                /* Note: you need to connect & release trx explicitly */
-                conn.setAutoCommit(false);
-                return true;
-            }
+            // open the first connection eagerly so that a bad config fails here
+            PooledConnection first = new PooledConnection(open());
+            idle.offerFirst(first);
+            permits = new Semaphore(conf.getPoolSize(), true);
+            return true;
         } catch (Exception e) {
             e.printStackTrace();
         }
         return false;
     }
 
-    public boolean release() {
-        if (conn == null) {
+    public synchronized boolean release() {
+        if (permits == null) {
             return false;
         }
+        permits = null;
+        // leased connections are closed when they are handed back
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            pooled.closePhysical();
+        }
+        return true;
+    }
+
+    /**
+     * lease a connection from the pool, waiting at most maxWait milliseconds
+     * for one to become available. the caller must close() it when done.
+     */
+    public Connection getConn() throws SQLException {
+        Semaphore permits = this.permits;
+        if (permits == null) {
+            throw new SQLException("Database is not connected.");
+        }
+        if (conf.getType().isInMemory()) {
+            throw new SQLException("An in-memory database has no connections.");
+        }
         try {
-            conn.close();
-            conn = null;
-            return true;
-        } catch (SQLException e) {
-            e.printStackTrace();
+            if (!permits.tryAcquire(conf.getMaxWait(), TimeUnit.MILLISECONDS)) {
+                throw new SQLTimeoutException("Timed out waiting for a database connection.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection.", e);
+        }
+        try {
+            PooledConnection pooled = takeIdle();
+            if (pooled == null) {
+                pooled = new PooledConnection(open());
+            }
+            return pooled.lease(permits);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
         }
-        return false;
     }
 
-    public Connection getConn() {
-        return conn;
+    /**
+     * open a connection for the native bulk-load path, not counted against
+     * the pool. the caller must close() it, which closes it for good.
+     */
+    public Connection openBulkLoadConn() throws SQLException {
+        if (permits == null) {
+            throw new SQLException("Database is not connected.");
+        }
+        if (conf.getType().isInMemory()) {
+            throw new SQLException("An in-memory database has no connections.");
+        }
+        return open(conf.getType().bulkLoadUrl(conf.getHost(), conf.getPort(), conf.getDB()));
     }
 
     public ConnectConfig getConf() {
         return conf;
     }
+
+    /* number of connections currently sitting in the pool */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /* number of connections currently leased out */
+    public int getActiveCount() {
+        Semaphore permits = this.permits;
+        return permits == null ? 0 : conf.getPoolSize() - permits.availablePermits();
+    }
+
+    /* number of prepareStatement(sql) calls served from the statement cache */
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    /* number of prepareStatement(sql) calls that had to prepare a new statement */
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    private Connection open() throws SQLException {
+        return open(conf.getType().url(conf.getHost(), conf.getPort(), conf.getDB()));
+    }
+
+    private Connection open(String url) throws SQLException {
+        Connection conn = DriverManager.getConnection(url, conf.getUser(), conf.getPassword());
+        /* Note: you need to connect & release trx explicitly */
+        conn.setAutoCommit(false);
+        return conn;
+    }
+
+    private PooledConnection takeIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            long idleMillis = System.currentTimeMillis() - pooled.lastUsed;
+            if (idleMillis > conf.getIdleTimeout() || (idleMillis > VALIDATION_INTERVAL_MILLIS && !pooled.isValid())) {
+                pooled.closePhysical();
+                continue;
+            }
+            return pooled;
+        }
+        return null;
+    }
+
+    private void recycle(PooledConnection pooled) {
+        Semaphore leasedFrom = pooled.permits;
+        pooled.permits = null;
+        try {
+            // with the statement cache off, nothing else would close the statements of the lease
+            pooled.statements.closeUncached();
+            if (pooled.dirty) {
+                pooled.physical.rollback();
+                pooled.dirty = false;
+            }
+            if (pooled.autoCommitChanged) {
+                pooled.physical.setAutoCommit(false);
+                pooled.autoCommitChanged = false;
+            }
+            if (leasedFrom != permits) {
+                // the pool was released while this connection was leased out
+                pooled.closePhysical();
+                return;
+            }
+            pooled.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+            evictExpired();
+        } catch (SQLException e) {
+            // a connection that cannot be reset is not worth keeping
+            pooled.closePhysical();
+        } finally {
+            leasedFrom.release();
+        }
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        PooledConnection oldest;
+        while ((oldest = idle.peekLast()) != null && now - oldest.lastUsed > conf.getIdleTimeout()) {
+            if (idle.removeLastOccurrence(oldest)) {
+                oldest.closePhysical();
+            }
+        }
+    }
+
+    private final class PooledConnection {
+
+        private final Connection physical;
+        private final StatementCache statements;
+        private volatile long lastUsed = System.currentTimeMillis();
+        /* the pool this connection is currently leased from, null if idle */
+        private Semaphore permits;
+        /* whether a statement has been issued since the last commit / rollback */
+        private boolean dirty;
+        private boolean autoCommitChanged;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+            this.statements = new StatementCache(physical, conf.getStatementCacheSize(),
+                    statementCacheHits, statementCacheMisses);
+        }
+
+        Connection lease(Semaphore permits) {
+            this.permits = permits;
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new Lease(this));
+        }
+
+        boolean isValid() {
+            try {
+                return physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void closePhysical() {
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /* the handle given to callers, closing it hands the connection back to the pool */
+    private final class Lease implements InvocationHandler {
+
+        private final PooledConnection pooled;
+        private boolean closed;
+
+        Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        recycle(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    if (closed) {
+                        return true;
+                    }
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + pooled.physical;
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Connection has already been returned to the pool.");
+            }
+            Object result;
+            try {
+                if (name.equals("prepareStatement") && args.length == 1) {
+                    result = pooled.statements.prepare((String) args[0]);
+                } else if (name.equals("prepareStatement") && args.length == 2 && args[1] instanceof Integer) {
+                    result = pooled.statements.prepare((String) args[0], (Integer) args[1]);
+                } else {
+                    result = method.invoke(pooled.physical, args);
+                }
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            switch (name) {
+                case "commit":
+                case "rollback":
+                    if (args == null) {
+                        pooled.dirty = false;
+                    }
+                    break;
+                case "createStatement":
+                case "prepareStatement":
+                case "prepareCall":
+                    pooled.dirty = true;
+                    break;
+                case "setAutoCommit":
+                    pooled.autoCommitChanged = true;
+                    break;
+                default:
+                    break;
+            }
+            return result;
+        }
+    }
 }
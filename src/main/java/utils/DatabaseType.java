@@ -1,10 +1,16 @@
 package utils;
 
+import com.microsoft.sqlserver.jdbc.SQLServerStatement;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
 public enum DatabaseType {
     MYSQL("mysql", "com.mysql.cj.jdbc.Driver", new MysqlInitializer()),
-    // TODO: to be updated
-    POSTGRES("postgresql", "org.postgresql.Driver", new MysqlInitializer()),
-    SQLSERVER("sqlserver", "com.microsoft.sqlserver.jdbc.SQLServerDriver", new SqlServerInitializer());
+    POSTGRES("postgresql", "org.postgresql.Driver", new PostgresInitializer()),
+    SQLSERVER("sqlserver", "com.microsoft.sqlserver.jdbc.SQLServerDriver", new SqlServerInitializer()),
+    /* no database at all, the library is kept in memory by InMemoryLibraryManagementSystem */
+    MEMORY("memory", null, null);
 
     DatabaseType(String typeName, String driverName, DBInitializer dbInitializer) {
         this.typeName = typeName;
@@ -25,8 +31,77 @@ public enum DatabaseType {
             case SQLSERVER:
                 return String.format("jdbc:sqlserver://%s:%s;DatabaseName=%s;encrypt=false", host, port, db);
             case MYSQL:
+                // prepare on the server, statements are reused through the pool's statement cache,
+                // and let the driver rewrite batched inserts into multi-row inserts
+                return String.format("jdbc:%s://%s:%s/%s?useServerPrepStmts=true&rewriteBatchedStatements=true",
+                        typeName, host, port, db);
+            case POSTGRES:
+                return String.format("jdbc:%s://%s:%s/%s?reWriteBatchedInserts=true", typeName, host, port, db);
+        }
+        return null;
+    }
+
+    /* url of the connections of the bulk loader, which may need driver options no other connection should have */
+    public String bulkLoadUrl(String host, String port, String db) {
+        if (this == MYSQL) {
+            // lets the server ask for local files, only ever fed from an in-memory stream by the bulk loader
+            return url(host, port, db) + "&allowLoadLocalInfile=true";
+        }
+        return url(host, port, db);
+    }
+
+    /* whether the library is kept in memory instead of a database */
+    public boolean isInMemory() {
+        return this == MEMORY;
+    }
+
+    /* whether the driver returns generated keys for every row of a batch insert */
+    public boolean supportsBatchGeneratedKeys() {
+        return this != SQLSERVER;
+    }
+
+    /* FROM clause of a SELECT of constants that has a WHERE clause */
+    public String fromDual() {
+        return this == MYSQL ? " FROM DUAL" : "";
+    }
+
+    /* appended after ORDER BY to return at most ? rows */
+    public String limitClause() {
+        switch (this) {
+            case SQLSERVER:
+                return " OFFSET 0 ROWS FETCH NEXT ? ROWS ONLY";
+            default:
+                return " LIMIT ?";
+        }
+    }
+
+    /* ask the driver to stream the rows of a forward-only result instead of buffering all of them */
+    public void configureStreaming(Statement stmt) throws SQLException {
+        switch (this) {
+            case MYSQL:
+                // row-by-row streaming mode of connector/j
+                stmt.setFetchSize(Integer.MIN_VALUE);
+                break;
+            case POSTGRES:
+                // fetches through a cursor, only honoured outside auto-commit
+                stmt.setFetchSize(STREAMING_FETCH_SIZE);
+                break;
+            case SQLSERVER:
+                stmt.setFetchSize(STREAMING_FETCH_SIZE);
+                stmt.unwrap(SQLServerStatement.class).setResponseBuffering("adaptive");
+                break;
+        }
+    }
+
+    /* native bulk-load path of this database, created on demand so that unused drivers are never loaded */
+    public BulkLoader bulkLoader() {
+        switch (this) {
+            case MYSQL:
+                return new MysqlBulkLoader();
             case POSTGRES:
-                return String.format("jdbc:%s://%s:%s/%s", typeName, host, port, db);
+                return new PostgresBulkLoader();
+            case SQLSERVER:
+                return new SqlServerBulkLoader();
         }
         return null;
     }
@@ -52,6 +127,8 @@ public enum DatabaseType {
         return dbInitializer;
     }
 
+    private static final int STREAMING_FETCH_SIZE = 1000;
+
     private final String typeName;
     private final String driverName;
     private final DBInitializer dbInitializer;
@@ -0,0 +1,50 @@
+package utils;
+
+/**
+ * A secondary index of the library schema, written out in the DDL of
+ * each dialect by its {@link DBInitializer}.
+ */
+public final class IndexDefinition {
+
+    private final String name;
+    private final String table;
+    private final String[] columns;
+
+    public IndexDefinition(String name, String table, String... columns) {
+        this.name = name;
+        this.table = table;
+        this.columns = columns;
+    }
+
+    /* comma separated columns, each wrapped in quote */
+    public String columnList(String quote) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(quote).append(columns[i]).append(quote);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "IndexDefinition{" + "name='" + name + '\'' +
+                ", table='" + table + '\'' +
+                ", columns=" + columnList("") +
+                '}';
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+}
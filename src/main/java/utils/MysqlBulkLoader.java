@@ -0,0 +1,33 @@
+package utils;
+
+import com.mysql.cj.jdbc.JdbcStatement;
+import entities.Book;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.List;
+
+/* LOAD DATA LOCAL INFILE fed from an in-memory stream instead of a file */
+final class MysqlBulkLoader implements BulkLoader {
+
+    @Override
+    public long load(Connection conn, List<Book> books) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.unwrap(JdbcStatement.class).setLocalInfileInputStream(new TsvBookStream(books));
+            long rows = stmt.executeLargeUpdate("LOAD DATA LOCAL INFILE 'books.tsv' INTO TABLE book " +
+                    "CHARACTER SET utf8mb4 FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' " +
+                    "(category, title, press, publish_year, author, price, stock)");
+            // LOCAL turns duplicate keys and bad values into warnings, treat them as errors
+            SQLWarning warning = stmt.getWarnings();
+            if (warning != null) {
+                throw new SQLException(warning.getMessage());
+            }
+            if (rows != books.size()) {
+                throw new SQLException("Only " + rows + " of " + books.size() + " books were loaded.");
+            }
+            return rows;
+        }
+    }
+}
@@ -4,17 +4,22 @@ public class MysqlInitializer implements DBInitializer {
 
     @Override
     public String sqlDropBook() {
-        return "drop table if exists `book`;";
+        return "drop table if exists `book`";
     }
 
     @Override
     public String sqlDropCard() {
-        return "drop table if exists `card`;";
+        return "drop table if exists `card`";
     }
 
     @Override
     public String sqlDropBorrow() {
-        return "drop table if exists `borrow`;";
+        return "drop table if exists `borrow`";
+    }
+
+    @Override
+    public String sqlDropActiveLoan() {
+        return "drop table if exists `active_loan`";
     }
 
     @Override
@@ -30,7 +35,7 @@ public class MysqlInitializer implements DBInitializer {
                 "    `stock` int not null default 0,\n" +
                 "    primary key (`book_id`),\n" +
                 "    unique (`category`, `press`, `author`, `title`, `publish_year`)\n" +
-                ") engine=innodb charset=utf8mb4;";
+                ") engine=innodb charset=utf8mb4";
     }
 
     @Override
@@ -43,7 +48,7 @@ public class MysqlInitializer implements DBInitializer {
                 "    primary key (`card_id`),\n" +
                 "    unique (`department`, `type`, `name`),\n" +
                 "    check ( `type` in ('T', 'S') )\n" +
-                ") engine=innodb charset=utf8mb4;";
+                ") engine=innodb charset=utf8mb4";
     }
 
     @Override
@@ -56,6 +61,49 @@ public class MysqlInitializer implements DBInitializer {
                 "  primary key (`card_id`, `book_id`, `borrow_time`),\n" +
                 "  foreign key (`card_id`) references `card`(`card_id`) on delete cascade on update cascade,\n" +
                 "  foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade\n" +
-                ") engine=innodb charset=utf8mb4;";
+                ") engine=innodb charset=utf8mb4";
+    }
+
+    @Override
+    public String sqlCreateActiveLoan() {
+        return "create table `active_loan` (\n" +
+                "  `card_id` int not null,\n" +
+                "  `book_id` int not null,\n" +
+                "  `borrow_time` bigint not null,\n" +
+                "  primary key (`card_id`, `book_id`),\n" +
+                "  foreign key (`card_id`) references `card`(`card_id`) on delete cascade on update cascade,\n" +
+                "  foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade\n" +
+                ") engine=innodb charset=utf8mb4";
+    }
+
+    @Override
+    public String sqlCreateIndex(IndexDefinition index) {
+        return "create index `" + index.getName() + "` on `" + index.getTable() + "` (" + index.columnList("`") + ")";
+    }
+
+    @Override
+    public String sqlCreateIndexOnline(IndexDefinition index) {
+        return "alter table `" + index.getTable() + "` add index `" + index.getName() + "` (" + index.columnList("`") + "), " +
+                "algorithm=inplace, lock=none";
+    }
+
+    @Override
+    public String sqlDropIndex(IndexDefinition index) {
+        return "drop index `" + index.getName() + "` on `" + index.getTable() + "`";
+    }
+
+    @Override
+    public String sqlDropIndexOnline(IndexDefinition index) {
+        return "alter table `" + index.getTable() + "` drop index `" + index.getName() + "`, algorithm=inplace, lock=none";
+    }
+
+    @Override
+    public String sqlIndexExists() {
+        return "select 1 from information_schema.statistics where table_schema = database() and table_name = ? and index_name = ?";
+    }
+
+    @Override
+    public String sqlTableExists() {
+        return "select 1 from information_schema.tables where table_schema = database() and table_name = ?";
     }
 }
@@ -0,0 +1,324 @@
+package utils;
+
+import entities.Book;
+import utils.primitive.LongIntHashMap;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Books stored outside the Java heap, in fixed-width slots of direct
+ * buffers addressed by book_id, so that millions of books cost neither
+ * heap nor GC time.
+ *
+ * Note:
+ *      (1) category, press & author are stored as codes of the global
+ *          {@link StringDictionary}, they only take a few distinct values.
+ *          titles are stored as UTF-8 in an append-only text arena,
+ *          together with their folded form for fuzzy matching.
+ *      (2) fields are read from the slot when asked for, a Book is only
+ *          decoded by {@link #get}. the stock is written in place.
+ *      (3) a modified title is appended again, the old bytes are only
+ *          reclaimed by {@link #clear}.
+ *      (4) the store is not thread-safe, the owner must lock around it.
+ *          slots are filled in id order, so ids should be dense.
+ */
+public final class OffHeapBookStore {
+
+    /* slot layout, the book_id is 0 in an empty slot */
+    private static final int BOOK_ID = 0;
+    private static final int CATEGORY = 4;
+    private static final int PRESS = 8;
+    private static final int AUTHOR = 12;
+    private static final int PUBLISH_YEAR = 16;
+    private static final int STOCK = 20;
+    private static final int PRICE = 24;
+    private static final int TITLE = 32;
+    private static final int FOLDED_TITLE = 40;
+    /* next book with the same unique key hash, 0 at the end */
+    private static final int NEXT_SAME_KEY = 48;
+    private static final int SLOT_SIZE = 56;
+    private static final int SEGMENT_SLOTS = 1 << 14;
+    /* text references are (segment, offset, length), so no text may exceed a segment */
+    private static final int ARENA_SEGMENT_BITS = 20;
+    private static final int ARENA_SEGMENT = 1 << ARENA_SEGMENT_BITS;
+
+    private final List<ByteBuffer> slots = new ArrayList<>();
+    private final List<ByteBuffer> arena = new ArrayList<>();
+    private int arenaPosition = ARENA_SEGMENT;
+    private final StringDictionary dictionary = StringDictionary.global();
+    /* folded values by dictionary code, filled in by put() so that readers never write */
+    private final List<String> folded = new ArrayList<>();
+    /* hash of the unique key (category, press, author, title, publish_year) -> first book with it */
+    private final LongIntHashMap keyHeads = new LongIntHashMap();
+    private int size;
+
+    /* store a new book or replace the stored one of the same book_id */
+    public void put(Book book) {
+        int bookId = book.getBookId();
+        if (bookId <= 0) {
+            throw new IllegalArgumentException("Book id must be positive.");
+        }
+        if (contains(bookId)) {
+            unlinkKey(bookId);
+        } else {
+            ensureSlot(bookId);
+            size++;
+        }
+        ByteBuffer segment = segment(bookId);
+        int slot = slot(bookId);
+        segment.putInt(slot + BOOK_ID, bookId);
+        segment.putInt(slot + CATEGORY, dictionary.encode(book.getCategory()));
+        segment.putInt(slot + PRESS, encodeFolded(book.getPress()));
+        segment.putInt(slot + AUTHOR, encodeFolded(book.getAuthor()));
+        segment.putInt(slot + PUBLISH_YEAR, book.getPublishYear());
+        segment.putInt(slot + STOCK, book.getStock());
+        segment.putDouble(slot + PRICE, book.getPrice());
+        segment.putLong(slot + TITLE, appendText(book.getTitle()));
+        segment.putLong(slot + FOLDED_TITLE, appendText(TrigramIndex.fold(book.getTitle())));
+        long key = keyHash(book);
+        segment.putInt(slot + NEXT_SAME_KEY, keyHeads.put(key, bookId));
+    }
+
+    public boolean remove(int bookId) {
+        if (!contains(bookId)) {
+            return false;
+        }
+        unlinkKey(bookId);
+        segment(bookId).putInt(slot(bookId) + BOOK_ID, 0);
+        size--;
+        return true;
+    }
+
+    public boolean contains(int bookId) {
+        return bookId > 0 && bookId <= slots.size() * SEGMENT_SLOTS
+                && segment(bookId).getInt(slot(bookId) + BOOK_ID) == bookId;
+    }
+
+    /* the book_id of the stored book with the unique key of book, or 0 */
+    public int findByKey(Book book) {
+        int bookId = keyHeads.get(keyHash(book));
+        while (bookId != 0) {
+            if (sameKey(bookId, book)) {
+                return bookId;
+            }
+            bookId = segment(bookId).getInt(slot(bookId) + NEXT_SAME_KEY);
+        }
+        return 0;
+    }
+
+    /* the smallest stored book_id greater than bookId, or 0, to iterate in book_id order */
+    public int next(int bookId) {
+        int capacity = slots.size() * SEGMENT_SLOTS;
+        for (int id = Math.max(bookId, 0) + 1; id <= capacity; id++) {
+            if (segment(id).getInt(slot(id) + BOOK_ID) == id) {
+                return id;
+            }
+        }
+        return 0;
+    }
+
+    /* a copy of the stored book, or null */
+    public Book get(int bookId) {
+        if (!contains(bookId)) {
+            return null;
+        }
+        Book book = new Book();
+        book.setBookId(bookId);
+        book.setCategory(getCategory(bookId));
+        book.setTitle(getTitle(bookId));
+        book.setPress(getPress(bookId));
+        book.setPublishYear(getPublishYear(bookId));
+        book.setAuthor(getAuthor(bookId));
+        book.setPrice(getPrice(bookId));
+        book.setStock(getStock(bookId));
+        return book;
+    }
+
+    /* the getters below expect a stored book_id */
+
+    public String getCategory(int bookId) {
+        return dictionary.decode(getCategoryCode(bookId));
+    }
+
+    public int getCategoryCode(int bookId) {
+        return segment(bookId).getInt(slot(bookId) + CATEGORY);
+    }
+
+    public String getTitle(int bookId) {
+        return readText(segment(bookId).getLong(slot(bookId) + TITLE));
+    }
+
+    public String getFoldedTitle(int bookId) {
+        return readText(segment(bookId).getLong(slot(bookId) + FOLDED_TITLE));
+    }
+
+    public String getPress(int bookId) {
+        return dictionary.decode(getPressCode(bookId));
+    }
+
+    public int getPressCode(int bookId) {
+        return segment(bookId).getInt(slot(bookId) + PRESS);
+    }
+
+    public String getFoldedPress(int bookId) {
+        return foldedOf(getPressCode(bookId));
+    }
+
+    public String getAuthor(int bookId) {
+        return dictionary.decode(getAuthorCode(bookId));
+    }
+
+    public int getAuthorCode(int bookId) {
+        return segment(bookId).getInt(slot(bookId) + AUTHOR);
+    }
+
+    public String getFoldedAuthor(int bookId) {
+        return foldedOf(getAuthorCode(bookId));
+    }
+
+    public int getPublishYear(int bookId) {
+        return segment(bookId).getInt(slot(bookId) + PUBLISH_YEAR);
+    }
+
+    public double getPrice(int bookId) {
+        return segment(bookId).getDouble(slot(bookId) + PRICE);
+    }
+
+    public int getStock(int bookId) {
+        return segment(bookId).getInt(slot(bookId) + STOCK);
+    }
+
+    public void setStock(int bookId, int stock) {
+        segment(bookId).putInt(slot(bookId) + STOCK, stock);
+    }
+
+
+    public int size() {
+        return size;
+    }
+
+    /* bytes of direct memory held by slots & text */
+    public long getOffHeapBytes() {
+        return (long) slots.size() * SEGMENT_SLOTS * SLOT_SIZE + (long) arena.size() * ARENA_SEGMENT;
+    }
+
+    public void clear() {
+        slots.clear();
+        arena.clear();
+        arenaPosition = ARENA_SEGMENT;
+        keyHeads.clear();
+        size = 0;
+    }
+
+    private ByteBuffer segment(int bookId) {
+        return slots.get((bookId - 1) / SEGMENT_SLOTS);
+    }
+
+    private static int slot(int bookId) {
+        return (bookId - 1) % SEGMENT_SLOTS * SLOT_SIZE;
+    }
+
+    private void ensureSlot(int bookId) {
+        while (slots.size() * SEGMENT_SLOTS < bookId) {
+            // direct buffers are zeroed, so every new slot is empty
+            slots.add(ByteBuffer.allocateDirect(SEGMENT_SLOTS * SLOT_SIZE));
+        }
+    }
+
+    /* remove a stored book from the chain of its key hash */
+    private void unlinkKey(int bookId) {
+        long key = keyHash(getCategoryCode(bookId), getPressCode(bookId), getAuthorCode(bookId), getTitle(bookId),
+                getPublishYear(bookId));
+        int next = segment(bookId).getInt(slot(bookId) + NEXT_SAME_KEY);
+        int head = keyHeads.get(key);
+        if (head == bookId) {
+            if (next == 0) {
+                keyHeads.remove(key);
+            } else {
+                keyHeads.put(key, next);
+            }
+            return;
+        }
+        for (int id = head; id != 0; id = segment(id).getInt(slot(id) + NEXT_SAME_KEY)) {
+            if (segment(id).getInt(slot(id) + NEXT_SAME_KEY) == bookId) {
+                segment(id).putInt(slot(id) + NEXT_SAME_KEY, next);
+                return;
+            }
+        }
+    }
+
+    private boolean sameKey(int bookId, Book book) {
+        return getPublishYear(bookId) == book.getPublishYear()
+                && getCategoryCode(bookId) == dictionary.code(book.getCategory())
+                && getPressCode(bookId) == dictionary.code(book.getPress())
+                && getAuthorCode(bookId) == dictionary.code(book.getAuthor())
+                && Objects.equals(getTitle(bookId), book.getTitle());
+    }
+
+    private long keyHash(Book book) {
+        return keyHash(dictionary.code(book.getCategory()), dictionary.code(book.getPress()),
+                dictionary.code(book.getAuthor()), book.getTitle(), book.getPublishYear());
+    }
+
+    private static long keyHash(int category, int press, int author, String title, int publishYear) {
+        long h = category;
+        h = h * 0x9E3779B97F4A7C15L + press;
+        h = h * 0x9E3779B97F4A7C15L + author;
+        h = h * 0x9E3779B97F4A7C15L + Objects.hashCode(title);
+        h = h * 0x9E3779B97F4A7C15L + publishYear;
+        return h ^ (h >>> 29);
+    }
+
+    /* the dictionary code of value, making sure its folded form is known */
+    private int encodeFolded(String value) {
+        int code = dictionary.encode(value);
+        while (folded.size() <= code) {
+            folded.add(null);
+        }
+        if (code >= 0 && folded.get(code) == null) {
+            folded.set(code, TrigramIndex.fold(value));
+        }
+        return code;
+    }
+
+    private String foldedOf(int code) {
+        return code < 0 ? "" : folded.get(code);
+    }
+
+    /* copy text into the arena, returns its reference, -1 for null */
+    private long appendText(String text) {
+        if (text == null) {
+            return -1;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= ARENA_SEGMENT) {
+            throw new IllegalArgumentException("Text is too long: " + bytes.length + " bytes.");
+        }
+        if (arenaPosition + bytes.length > ARENA_SEGMENT) {
+            arena.add(ByteBuffer.allocateDirect(ARENA_SEGMENT));
+            arenaPosition = 0;
+        }
+        ByteBuffer segment = arena.get(arena.size() - 1).duplicate();
+        segment.position(arenaPosition);
+        segment.put(bytes);
+        long ref = (long) (arena.size() - 1) << (2 * ARENA_SEGMENT_BITS) | (long) arenaPosition << ARENA_SEGMENT_BITS
+                | bytes.length;
+        arenaPosition += bytes.length;
+        return ref;
+    }
+
+    private String readText(long ref) {
+        if (ref < 0) {
+            return null;
+        }
+        ByteBuffer segment = arena.get((int) (ref >>> (2 * ARENA_SEGMENT_BITS))).duplicate();
+        segment.position((int) (ref >>> ARENA_SEGMENT_BITS) & (ARENA_SEGMENT - 1));
+        byte[] bytes = new byte[(int) ref & (ARENA_SEGMENT - 1)];
+        segment.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
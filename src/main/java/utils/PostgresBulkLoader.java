@@ -0,0 +1,24 @@
+package utils;
+
+import entities.Book;
+import org.postgresql.PGConnection;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/* COPY FROM STDIN in text format */
+final class PostgresBulkLoader implements BulkLoader {
+
+    @Override
+    public long load(Connection conn, List<Book> books) throws SQLException {
+        try {
+            return conn.unwrap(PGConnection.class).getCopyAPI().copyIn(
+                    "COPY book (category, title, press, publish_year, author, price, stock) FROM STDIN",
+                    new TsvBookStream(books));
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package utils;
+
+public class PostgresInitializer implements DBInitializer {
+
+    @Override
+    public String sqlDropBook() {
+        return "drop table if exists book";
+    }
+
+    @Override
+    public String sqlDropCard() {
+        return "drop table if exists card";
+    }
+
+    @Override
+    public String sqlDropBorrow() {
+        return "drop table if exists borrow";
+    }
+
+    @Override
+    public String sqlDropActiveLoan() {
+        return "drop table if exists active_loan";
+    }
+
+    @Override
+    public String sqlCreateBook() {
+        return "create table book (\n" +
+                "    book_id serial not null,\n" +
+                "    category varchar(63) not null,\n" +
+                "    title varchar(63) not null,\n" +
+                "    press varchar(63) not null,\n" +
+                "    publish_year int not null,\n" +
+                "    author varchar(63) not null,\n" +
+                "    price decimal(7, 2) not null default 0.00,\n" +
+                "    stock int not null default 0,\n" +
+                "    primary key (book_id),\n" +
+                "    unique (category, press, author, title, publish_year)\n" +
+                ")";
+    }
+
+    @Override
+    public String sqlCreateCard() {
+        return "create table card (\n" +
+                "    card_id serial not null,\n" +
+                "    name varchar(63) not null,\n" +
+                "    department varchar(63) not null,\n" +
+                "    type char(1) not null,\n" +
+                "    primary key (card_id),\n" +
+                "    unique (department, type, name),\n" +
+                "    check ( type in ('T', 'S') )\n" +
+                ")";
+    }
+
+    @Override
+    public String sqlCreateBorrow() {
+        return "create table borrow (\n" +
+                "    card_id int not null,\n" +
+                "    book_id int not null,\n" +
+                "    borrow_time bigint not null,\n" +
+                "    return_time bigint not null default 0,\n" +
+                "    primary key (card_id, book_id, borrow_time),\n" +
+                "    foreign key (card_id) references card(card_id) on delete cascade on update cascade,\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ")";
+    }
+
+    @Override
+    public String sqlCreateActiveLoan() {
+        return "create table active_loan (\n" +
+                "    card_id int not null,\n" +
+                "    book_id int not null,\n" +
+                "    borrow_time bigint not null,\n" +
+                "    primary key (card_id, book_id),\n" +
+                "    foreign key (card_id) references card(card_id) on delete cascade on update cascade,\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ")";
+    }
+
+    @Override
+    public String sqlCreateIndex(IndexDefinition index) {
+        return "create index " + index.getName() + " on " + index.getTable() + " (" + index.columnList("") + ")";
+    }
+
+    @Override
+    public String sqlCreateIndexOnline(IndexDefinition index) {
+        // concurrently cannot run inside a transaction block
+        return "create index concurrently " + index.getName() + " on " + index.getTable() + " (" + index.columnList("") + ")";
+    }
+
+    @Override
+    public String sqlDropIndex(IndexDefinition index) {
+        return "drop index " + index.getName();
+    }
+
+    @Override
+    public String sqlDropIndexOnline(IndexDefinition index) {
+        // concurrently cannot run inside a transaction block
+        return "drop index concurrently " + index.getName();
+    }
+
+    @Override
+    public String sqlIndexExists() {
+        return "select i.indisvalid from pg_index i join pg_class c on c.oid = i.indexrelid " +
+                "join pg_class t on t.oid = i.indrelid join pg_namespace n on n.oid = c.relnamespace " +
+                "where n.nspname = current_schema() and t.relname = ? and c.relname = ?";
+    }
+
+    @Override
+    public String sqlTableExists() {
+        return "select 1 from information_schema.tables where table_schema = current_schema() and table_name = ?";
+    }
+}
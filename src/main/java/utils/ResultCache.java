@@ -0,0 +1,108 @@
+package utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+/**
+ * LRU cache of query results, bounded by the total weight of the cached
+ * values (e.g. the number of rows) rather than by the number of entries.
+ *
+ * Note:
+ *      (1) every entry is stamped with the version of the data it was
+ *          computed from, and is only served for that same version. the
+ *          owner bumps its version whenever the data changes, so a stale
+ *          entry is never returned and simply ages out.
+ *      (2) entries also expire ttlMillis after they are stored, for
+ *          changes the owner does not see.
+ */
+public final class ResultCache<K, V> {
+
+    private final long maxWeight;
+    private final long ttlMillis;
+    private final ToIntFunction<V> weigher;
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ResultCache(long maxWeight, long ttlMillis, ToIntFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.ttlMillis = ttlMillis;
+        this.weigher = weigher;
+    }
+
+    /* the value cached for key at this version, or null */
+    public synchronized V get(K key, long version) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.version != version || System.currentTimeMillis() > entry.expiresAt) {
+            remove(key);
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /* cache value computed from data at version, the caller must not modify it afterwards */
+    public synchronized void put(K key, V value, long version) {
+        int w = weigher.applyAsInt(value) + 1;
+        if (w > maxWeight) {
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry<>(value, version, w, System.currentTimeMillis() + ttlMillis));
+        weight += w;
+        // evict the least recently used entries
+        Iterator<Entry<V>> it = entries.values().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            weight -= it.next().weight;
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    private static final class Entry<V> {
+
+        private final V value;
+        private final long version;
+        private final int weight;
+        private final long expiresAt;
+
+        Entry(V value, long version, int weight, long expiresAt) {
+            this.value = value;
+            this.version = version;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
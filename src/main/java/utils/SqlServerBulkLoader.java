@@ -0,0 +1,96 @@
+package utils;
+
+import com.microsoft.sqlserver.jdbc.ISQLServerBulkData;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+import com.microsoft.sqlserver.jdbc.SQLServerConnection;
+import entities.Book;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/* bulk copy API of the SQL Server driver, within the connection's transaction */
+final class SqlServerBulkLoader implements BulkLoader {
+
+    private static final String[] COLUMNS = {"category", "title", "press", "publish_year", "author", "price", "stock"};
+    private static final int[] TYPES = {Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.INTEGER,
+            Types.VARCHAR, Types.DECIMAL, Types.INTEGER};
+
+    @Override
+    public long load(Connection conn, List<Book> books) throws SQLException {
+        SQLServerBulkCopyOptions options = new SQLServerBulkCopyOptions();
+        options.setKeepIdentity(false);
+        // no table lock, it would be held until the caller commits and block every borrow meanwhile
+        options.setBulkCopyTimeout(0);
+        try (SQLServerBulkCopy bulkCopy = new SQLServerBulkCopy(conn.unwrap(SQLServerConnection.class))) {
+            bulkCopy.setBulkCopyOptions(options);
+            bulkCopy.setDestinationTableName("book");
+            for (int i = 0; i < COLUMNS.length; i++) {
+                bulkCopy.addColumnMapping(i + 1, COLUMNS[i]);
+            }
+            bulkCopy.writeToServer(new BookData(books));
+        }
+        return books.size();
+    }
+
+    /* ISQLServerBulkData extends Serializable, but the driver never serializes it */
+    @SuppressWarnings("serial")
+    private static final class BookData implements ISQLServerBulkData {
+
+        private final Iterator<Book> books;
+        private Book current;
+
+        BookData(List<Book> books) {
+            this.books = books.iterator();
+        }
+
+        @Override
+        public Set<Integer> getColumnOrdinals() {
+            return new LinkedHashSet<>(Arrays.asList(1, 2, 3, 4, 5, 6, 7));
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column - 1];
+        }
+
+        @Override
+        public int getColumnType(int column) {
+            return TYPES[column - 1];
+        }
+
+        @Override
+        public int getPrecision(int column) {
+            return TYPES[column - 1] == Types.DECIMAL ? 7 : TYPES[column - 1] == Types.VARCHAR ? 63 : 0;
+        }
+
+        @Override
+        public int getScale(int column) {
+            return TYPES[column - 1] == Types.DECIMAL ? 2 : 0;
+        }
+
+        @Override
+        public Object[] getRowData() {
+            return new Object[]{current.getCategory(), current.getTitle(), current.getPress(),
+                    current.getPublishYear(), current.getAuthor(),
+                    BigDecimal.valueOf(current.getPrice()).setScale(2, RoundingMode.HALF_UP), current.getStock()};
+        }
+
+        @Override
+        public boolean next() {
+            if (!books.hasNext()) {
+                return false;
+            }
+            current = books.next();
+            return true;
+        }
+    }
+}
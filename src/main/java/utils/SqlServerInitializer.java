@@ -17,6 +17,11 @@ public class SqlServerInitializer implements DBInitializer {
         return "IF OBJECT_ID('dbo.borrow', 'U') IS NOT NULL DROP TABLE dbo.borrow;";
     }
 
+    @Override
+    public String sqlDropActiveLoan() {
+        return "IF OBJECT_ID('dbo.active_loan', 'U') IS NOT NULL DROP TABLE dbo.active_loan;";
+    }
+
     @Override
     public String sqlCreateBook() {
         return "create table book (\n" +
@@ -58,4 +63,49 @@ public class SqlServerInitializer implements DBInitializer {
                 "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
                 ");";
     }
+
+    @Override
+    public String sqlCreateActiveLoan() {
+        return "create table active_loan (\n" +
+                "    card_id int not null,\n" +
+                "    book_id int not null,\n" +
+                "    borrow_time bigint not null,\n" +
+                "    primary key (card_id, book_id),\n" +
+                "    foreign key (card_id) references card(card_id) on delete cascade on update cascade,\n" +
+                "    foreign key (book_id) references book(book_id) on delete cascade on update cascade\n" +
+                ");";
+    }
+
+    @Override
+    public String sqlCreateIndex(IndexDefinition index) {
+        return "create index " + index.getName() + " on " + index.getTable() + " (" + index.columnList("") + ");";
+    }
+
+    @Override
+    public String sqlCreateIndexOnline(IndexDefinition index) {
+        // online index operations need the enterprise edition, callers fall back to sqlCreateIndex
+        return "create index " + index.getName() + " on " + index.getTable() + " (" + index.columnList("") + ") " +
+                "with (online = on);";
+    }
+
+    @Override
+    public String sqlDropIndex(IndexDefinition index) {
+        return "drop index " + index.getName() + " on " + index.getTable() + ";";
+    }
+
+    @Override
+    public String sqlDropIndexOnline(IndexDefinition index) {
+        // online drops only exist for clustered indexes, a nonclustered one goes without blocking anyway
+        return sqlDropIndex(index);
+    }
+
+    @Override
+    public String sqlIndexExists() {
+        return "select 1 from sys.indexes where object_id = object_id(?) and name = ?;";
+    }
+
+    @Override
+    public String sqlTableExists() {
+        return "select 1 from sys.tables where object_id = object_id(?);";
+    }
 }
@@ -0,0 +1,96 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of prepared statements of one physical connection, keyed by
+ * SQL text (and whether the statement returns generated keys). a
+ * statement is closed when it is evicted.
+ *
+ * Note:
+ *      (1) a connection is used by one thread at a time, so the cache
+ *          itself is not synchronized. the hit & miss counters are shared
+ *          by all connections of a pool.
+ *      (2) every distinct text takes an entry, so SQL built for a number
+ *          of values, e.g. IN lists, should come in a few sizes only, or
+ *          it evicts the statements that are used all the time.
+ *      (3) with capacity 0 nothing is cached, the statements handed out
+ *          are closed by {@link #closeUncached} when the connection goes
+ *          back to the pool, since callers do not close them.
+ */
+final class StatementCache {
+
+    private final Connection conn;
+    private final int capacity;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    /* statements handed out without being cached, until the lease ends */
+    private final List<PreparedStatement> uncached = new ArrayList<>();
+
+    StatementCache(Connection conn, int capacity, AtomicLong hits, AtomicLong misses) {
+        this.conn = conn;
+        this.capacity = capacity;
+        this.hits = hits;
+        this.misses = misses;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                close(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        // the same text prepared to return keys is a different statement
+        String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "RETURN_GENERATED_KEYS:" + sql : sql;
+        PreparedStatement stmt = statements.get(key);
+        if (stmt != null && !stmt.isClosed()) {
+            hits.incrementAndGet();
+            // drop whatever a failed caller may have left behind
+            stmt.clearBatch();
+            stmt.clearParameters();
+            return stmt;
+        }
+        misses.incrementAndGet();
+        stmt = conn.prepareStatement(sql, autoGeneratedKeys);
+        if (capacity > 0) {
+            statements.put(key, stmt);
+        } else {
+            uncached.add(stmt);
+        }
+        return stmt;
+    }
+
+    /* close the statements handed out since the last call, called when the lease of the connection ends */
+    void closeUncached() {
+        for (PreparedStatement stmt : uncached) {
+            close(stmt);
+        }
+        uncached.clear();
+    }
+
+    private static void close(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
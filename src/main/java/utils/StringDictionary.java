@@ -0,0 +1,79 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary of strings & int codes for the text columns that only take a
+ * few distinct values, like category, press, author & department. the
+ * values read from the database are interned through it, so that every
+ * distinct value is kept once however many books carry it, and in-memory
+ * filters on those columns compare codes instead of strings.
+ *
+ * Note:
+ *      (1) codes are handed out from 0 in the order values are first seen
+ *          and never change, values are never removed. so a code is only
+ *          meaningful within one process, persist the strings instead.
+ *      (2) only meant for low-cardinality columns, the dictionary grows
+ *          with every distinct value.
+ *      (3) thread-safe, lookups of known values do not lock.
+ */
+public final class StringDictionary {
+
+    private static final StringDictionary GLOBAL = new StringDictionary();
+
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    /* by code, written before the code is published through codes */
+    private volatile String[] values = new String[64];
+    private int size;
+
+    /* the dictionary shared by the whole process */
+    public static StringDictionary global() {
+        return GLOBAL;
+    }
+
+    /* the code of value, adding it if it is new. null has the code -1 */
+    public int encode(String value) {
+        if (value == null) {
+            return -1;
+        }
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(value);
+            if (code == null) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                values[size] = value;
+                code = size++;
+                codes.put(value, code);
+            }
+            return code;
+        }
+    }
+
+    /* the code of value, or -1 if it has none, e.g. to filter by a value no book has */
+    public int code(String value) {
+        if (value == null) {
+            return -1;
+        }
+        return codes.getOrDefault(value, -1);
+    }
+
+    public String decode(int code) {
+        return code < 0 ? null : values[code];
+    }
+
+    /* the one kept instance equal to value */
+    public String intern(String value) {
+        return decode(encode(value));
+    }
+
+    public int size() {
+        return codes.size();
+    }
+}
@@ -0,0 +1,56 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The first n items of a sequence in a given order, kept in a bounded
+ * heap, so picking them costs O(m log n) for m items instead of sorting
+ * all of them.
+ */
+public final class TopN<T> {
+
+    private final int n;
+    private final Comparator<? super T> order;
+    /* the worst of the kept items on top */
+    private final PriorityQueue<T> heap;
+
+    public TopN(int n, Comparator<? super T> order) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive.");
+        }
+        this.n = n;
+        this.order = order;
+        this.heap = new PriorityQueue<>(Math.min(n, 1024) + 1, order.reversed());
+    }
+
+    public void offer(T item) {
+        if (heap.size() < n) {
+            heap.offer(item);
+        } else if (order.compare(item, heap.peek()) < 0) {
+            heap.poll();
+            heap.offer(item);
+        }
+    }
+
+    /* the kept items, best first */
+    public List<T> toSortedList() {
+        List<T> items = new ArrayList<>(heap);
+        items.sort(order);
+        return items;
+    }
+
+    public static <T> List<T> of(Iterable<? extends T> items, int n, Comparator<? super T> order) {
+        if (n == 0) {
+            return Collections.emptyList();
+        }
+        TopN<T> top = new TopN<>(n, order);
+        for (T item : items) {
+            top.offer(item);
+        }
+        return top.toSortedList();
+    }
+}
@@ -0,0 +1,234 @@
+package utils;
+
+import utils.primitive.IntHashSet;
+import utils.primitive.IntObjectHashMap;
+import utils.primitive.LongObjectHashMap;
+
+import java.sql.SQLException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory trigram inverted index over a fixed number of text fields of
+ * documents identified by an int id, used to answer substring searches
+ * (LIKE '%x%') without scanning every document.
+ *
+ * Note:
+ *      (1) text is folded to lower case without accents before indexing
+ *          and searching, like the case & accent insensitive collations.
+ *      (2) the index is loaded on demand by {@link #ensureLoaded}. until
+ *          then every put / remove is ignored, the loader sees those
+ *          changes anyway.
+ *      (3) callers apply changes after they are committed, a loader that
+ *          runs concurrently holds the write lock so no change is lost.
+ *      (4) the folded values of low-cardinality fields, given to the
+ *          constructor, are interned through the {@link StringDictionary}
+ *          instead of being kept once per document.
+ *      (5) trigrams & document ids are kept in primitive collections, no
+ *          Long or Integer is boxed per posting.
+ */
+public final class TrigramIndex {
+
+    public interface Loader {
+        void loadInto(TrigramIndex index) throws SQLException;
+    }
+
+    private final int fields;
+    private final boolean[] interned;
+    /* folded field values of every document, used to verify candidates */
+    private final IntObjectHashMap<String[]> documents = new IntObjectHashMap<>();
+    /* per field: trigram -> ids of the documents containing it */
+    private final List<LongObjectHashMap<IntHashSet>> postings = new ArrayList<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean loaded;
+    /* set while a loader holds the write lock, so only its puts get through */
+    private boolean loading;
+
+    public TrigramIndex(int fields, int... internedFields) {
+        this.fields = fields;
+        this.interned = new boolean[fields];
+        for (int field : internedFields) {
+            interned[field] = true;
+        }
+        for (int i = 0; i < fields; i++) {
+            postings.add(new LongObjectHashMap<>());
+        }
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void ensureLoaded(Loader loader) throws SQLException {
+        if (loaded) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (!loaded) {
+                clear();
+                loading = true;
+                try {
+                    loader.loadInto(this);
+                } finally {
+                    loading = false;
+                }
+                loaded = true;
+            }
+        } finally {
+            if (!loaded) {
+                clear();
+            }
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* drop everything, the next ensureLoaded loads the index again */
+    public void invalidate() {
+        lock.writeLock().lock();
+        try {
+            loaded = false;
+            clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* index a new document, or re-index an existing one */
+    public void put(int id, String... values) {
+        if (values.length != fields) {
+            throw new IllegalArgumentException("Expected " + fields + " fields.");
+        }
+        lock.writeLock().lock();
+        try {
+            if (!loaded && !loading) {
+                return;
+            }
+            unindex(id);
+            String[] folded = new String[fields];
+            for (int field = 0; field < fields; field++) {
+                folded[field] = fold(values[field]);
+                if (interned[field]) {
+                    folded[field] = StringDictionary.global().intern(folded[field]);
+                }
+                for (long trigram : trigrams(folded[field])) {
+                    postings.get(field).computeIfAbsent(trigram, k -> new IntHashSet(4)).add(id);
+                }
+            }
+            documents.put(id, folded);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int id) {
+        lock.writeLock().lock();
+        try {
+            unindex(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * ids of the documents whose field contains text, or null if the index
+     * cannot narrow the search down, i.e. it is not loaded or text is
+     * shorter than a trigram.
+     */
+    public IntHashSet search(int field, String text) {
+        String folded = fold(text);
+        long[] trigrams = trigrams(folded);
+        if (trigrams.length == 0) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            if (!loaded) {
+                return null;
+            }
+            // intersect starting from the rarest trigram
+            IntHashSet smallest = null;
+            for (long trigram : trigrams) {
+                IntHashSet ids = postings.get(field).get(trigram);
+                if (ids == null) {
+                    return new IntHashSet();
+                }
+                if (smallest == null || ids.size() < smallest.size()) {
+                    smallest = ids;
+                }
+            }
+            IntHashSet result = new IntHashSet();
+            smallest.forEach(id -> {
+                // sharing all trigrams does not mean the text is contained
+                if (documents.get(id)[field].contains(folded)) {
+                    result.add(id);
+                }
+            });
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void unindex(int id) {
+        String[] folded = documents.remove(id);
+        if (folded == null) {
+            return;
+        }
+        for (int field = 0; field < fields; field++) {
+            LongObjectHashMap<IntHashSet> index = postings.get(field);
+            for (long trigram : trigrams(folded[field])) {
+                IntHashSet ids = index.get(trigram);
+                if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                    index.remove(trigram);
+                }
+            }
+        }
+    }
+
+    private void clear() {
+        documents.clear();
+        for (LongObjectHashMap<IntHashSet> index : postings) {
+            index.clear();
+        }
+    }
+
+    /* text as it is indexed and matched: lower case, without accents */
+    public static String fold(String text) {
+        if (text == null) {
+            return "";
+        }
+        String stripped = Normalizer.normalize(text, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+        return stripped.toLowerCase(Locale.ROOT);
+    }
+
+    /* every 3 consecutive chars packed into a long, each distinct trigram once */
+    private static long[] trigrams(String folded) {
+        int n = Math.max(folded.length() - 2, 0);
+        long[] trigrams = new long[n];
+        for (int i = 0; i < n; i++) {
+            trigrams[i] = ((long) folded.charAt(i) << 32) | ((long) folded.charAt(i + 1) << 16) | folded.charAt(i + 2);
+        }
+        Arrays.sort(trigrams);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || trigrams[i] != trigrams[distinct - 1]) {
+                trigrams[distinct++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, distinct);
+    }
+}
@@ -0,0 +1,92 @@
+package utils;
+
+import entities.Book;
+
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Encodes books as tab separated rows of category, title, press,
+ * publish_year, author, price, stock, one row at a time. this is the text
+ * format read by both MySQL LOAD DATA and Postgres COPY.
+ */
+final class TsvBookStream extends InputStream {
+
+    private final Iterator<Book> books;
+    private byte[] row = new byte[0];
+    private int pos;
+
+    TsvBookStream(List<Book> books) {
+        this.books = books.iterator();
+    }
+
+    @Override
+    public int read() {
+        if (!fill()) {
+            return -1;
+        }
+        return row[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (n < len && fill()) {
+            int k = Math.min(len - n, row.length - pos);
+            System.arraycopy(row, pos, b, off + n, k);
+            pos += k;
+            n += k;
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    private boolean fill() {
+        if (pos < row.length) {
+            return true;
+        }
+        if (!books.hasNext()) {
+            return false;
+        }
+        Book book = books.next();
+        StringBuilder sb = new StringBuilder(128);
+        escape(sb, book.getCategory()).append('\t');
+        escape(sb, book.getTitle()).append('\t');
+        escape(sb, book.getPress()).append('\t');
+        sb.append(book.getPublishYear()).append('\t');
+        escape(sb, book.getAuthor()).append('\t');
+        sb.append(BigDecimal.valueOf(book.getPrice()).toPlainString()).append('\t');
+        sb.append(book.getStock()).append('\n');
+        row = sb.toString().getBytes(StandardCharsets.UTF_8);
+        pos = 0;
+        return true;
+    }
+
+    private static StringBuilder escape(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb;
+    }
+}
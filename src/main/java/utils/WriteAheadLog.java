@@ -0,0 +1,252 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Append-only log of binary records plus a snapshot, kept in a directory,
+ * that make an in-memory state durable. the owner decides what a record
+ * holds, this class only frames, syncs and replays them.
+ *
+ * Note:
+ *      (1) every record is framed as [length][crc32][bytes], so a record
+ *          torn by a crash is detected on recovery and cut off together
+ *          with whatever follows it.
+ *      (2) append() only writes, sync() forces to disk. a sync covers every
+ *          record appended before it, so threads waiting for the same sync
+ *          share one fsync (group commit).
+ *      (3) a snapshot holds the whole state at some point. writing one
+ *          starts a new generation of the log, which then only holds the
+ *          tail after the snapshot. a log of an older generation than the
+ *          snapshot is already contained in it and is dropped on recovery.
+ */
+public final class WriteAheadLog implements AutoCloseable {
+
+    /* reads the records of one generation, in the order they were written */
+    public interface RecordReader {
+        void read(DataInput in) throws IOException;
+    }
+
+    /* writes the whole state as the contents of a snapshot */
+    public interface SnapshotWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static final int LOG_MAGIC = 0x4C4D5357;
+    private static final int SNAPSHOT_MAGIC = 0x4C4D5353;
+    /* magic & generation */
+    private static final int HEADER_SIZE = 12;
+    /* length & crc32 */
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    private final Path logFile;
+    private final Path snapshotFile;
+    private final FileChannel channel;
+    private long generation;
+    /* end of the records appended & of those known to be on disk */
+    private volatile long written;
+    private volatile long synced;
+    private long records;
+    private final Object syncLock = new Object();
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * open the log in dir, creating it if needed. call {@link #recover}
+     * before appending anything.
+     */
+    public WriteAheadLog(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        this.logFile = dir.resolve("library.wal");
+        this.snapshotFile = dir.resolve("library.snapshot");
+        this.channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * hand the snapshot and then every intact record of the log to reader,
+     * and cut off a torn tail. afterwards the log is ready for appending.
+     */
+    public synchronized void recover(RecordReader snapshotReader, RecordReader recordReader) throws IOException {
+        long snapshotGeneration = 0;
+        if (Files.exists(snapshotFile)) {
+            snapshotGeneration = readSnapshot(snapshotReader);
+        }
+        long end = HEADER_SIZE;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (channel.size() < HEADER_SIZE || channel.read(header, 0) < HEADER_SIZE
+                || header.getInt(0) != LOG_MAGIC || header.getLong(4) < snapshotGeneration) {
+            // no log yet, or one the snapshot already contains
+            startGeneration(snapshotGeneration);
+        } else {
+            generation = header.getLong(4);
+            end = replay(recordReader);
+            channel.truncate(end);
+            channel.force(false);
+        }
+        channel.position(end);
+        written = end;
+        synced = end;
+    }
+
+    /* append a record, returns the log position to sync() for it to be durable */
+    public synchronized long append(byte[] record, int length) throws IOException {
+        crc.reset();
+        crc.update(record, 0, length);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+        frame.putInt(length).putInt((int) crc.getValue()).put(record, 0, length);
+        frame.flip();
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+        records++;
+        written = channel.position();
+        return written;
+    }
+
+    /* wait until the log is on disk up to position */
+    public void sync(long position) throws IOException {
+        if (synced >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            // a sync that ran while we waited may have covered us already
+            if (synced >= position) {
+                return;
+            }
+            long target = written;
+            channel.force(false);
+            synced = target;
+        }
+    }
+
+    /**
+     * replace the snapshot by the state written by writer and empty the
+     * log. the caller must keep appends out meanwhile.
+     */
+    public synchronized void snapshot(SnapshotWriter writer) throws IOException {
+        long next = generation + 1;
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16), new CRC32());
+            DataOutputStream data = new DataOutputStream(checked);
+            data.writeInt(SNAPSHOT_MAGIC);
+            data.writeLong(next);
+            writer.write(data);
+            data.flush();
+            long sum = checked.getChecksum().getValue();
+            data.writeLong(sum);
+            data.flush();
+            out.force(true);
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // a crash from here on finds the old log behind the snapshot & drops it.
+        // under syncLock, so that a sync of the old generation still running
+        // cannot leave synced past the end of the new one
+        synchronized (syncLock) {
+            startGeneration(next);
+            channel.position(HEADER_SIZE);
+            written = HEADER_SIZE;
+            synced = HEADER_SIZE;
+        }
+    }
+
+    /* end of the records known to be on disk */
+    public long getSynced() {
+        return synced;
+    }
+
+    /* number of records appended since the last snapshot */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void startGeneration(long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(LOG_MAGIC).putLong(generation);
+        header.flip();
+        channel.truncate(0);
+        channel.write(header, 0);
+        channel.force(true);
+        this.generation = generation;
+        this.records = 0;
+    }
+
+    private long readSnapshot(RecordReader reader) throws IOException {
+        try (InputStream file = Files.newInputStream(snapshotFile)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file, 1 << 16), new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a snapshot: " + snapshotFile);
+            }
+            long snapshotGeneration = in.readLong();
+            reader.read(in);
+            long sum = checked.getChecksum().getValue();
+            if (in.readLong() != sum) {
+                throw new IOException("Snapshot is corrupt: " + snapshotFile);
+            }
+            return snapshotGeneration;
+        }
+    }
+
+    /* feed the records to reader, returns the end of the last intact one */
+    private long replay(RecordReader reader) throws IOException {
+        channel.position(HEADER_SIZE);
+        // not closed, that would close the log
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        long end = HEADER_SIZE;
+        long size = channel.size();
+        byte[] record = new byte[256];
+        while (size - end >= FRAME_HEADER_SIZE) {
+            int length = in.readInt();
+            int sum = in.readInt();
+            if (length < 0 || length > size - end - FRAME_HEADER_SIZE) {
+                break;
+            }
+            if (record.length < length) {
+                record = new byte[Math.max(length, record.length * 2)];
+            }
+            try {
+                in.readFully(record, 0, length);
+            } catch (EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(record, 0, length);
+            if ((int) crc.getValue() != sum) {
+                break;
+            }
+            reader.read(new DataInputStream(new ByteArrayInputStream(record, 0, length)));
+            records++;
+            end += FRAME_HEADER_SIZE + length;
+        }
+        return end;
+    }
+}
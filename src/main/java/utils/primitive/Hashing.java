@@ -0,0 +1,40 @@
+package utils.primitive;
+
+/* shared by the open-addressing tables of this package */
+final class Hashing {
+
+    /* tables grow once they are this full, linear probing stays short below it */
+    static final float LOAD_FACTOR = 0.75f;
+
+    private Hashing() {
+    }
+
+    /* spread consecutive ids over the table */
+    static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /* spread packed keys over the table, every bit of the key counts */
+    static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return mix((int) (h ^ (h >>> 32)));
+    }
+
+    /* power of two table length that holds expected keys below the load factor */
+    static int tableLength(int expected) {
+        int length = Integer.highestOneBit(Math.max((int) Math.ceil(expected / LOAD_FACTOR), 2) - 1) << 1;
+        if (length <= 0) {
+            throw new IllegalArgumentException("Too many keys: " + expected);
+        }
+        return length;
+    }
+
+    /*
+     * whether the key in slot pos, whose home slot is home, may move back to
+     * the freed slot last, i.e. home is not cyclically within (last, pos]
+     */
+    static boolean canShift(int last, int home, int pos) {
+        return last <= pos ? last >= home || home > pos : last >= home && home > pos;
+    }
+}
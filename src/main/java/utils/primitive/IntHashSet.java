@@ -0,0 +1,173 @@
+package utils.primitive;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Set of ints in an open-addressing array, works like the keys of
+ * {@link IntObjectHashMap}.
+ */
+public final class IntHashSet {
+
+    private int[] keys;
+    private int mask;
+    private int resizeAt;
+    private int size;
+    private boolean hasZero;
+
+    public IntHashSet() {
+        this(16);
+    }
+
+    public IntHashSet(int expected) {
+        allocate(Hashing.tableLength(expected));
+    }
+
+    public boolean contains(int key) {
+        if (key == 0) {
+            return hasZero;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (int k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* returns whether key was added, i.e. was not in the set */
+    public boolean add(int key) {
+        if (key == 0) {
+            if (hasZero) {
+                return false;
+            }
+            hasZero = true;
+            size++;
+            return true;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (int k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                return false;
+            }
+        }
+        keys[pos] = key;
+        if (++size > resizeAt) {
+            rehash(keys.length * 2);
+        }
+        return true;
+    }
+
+    /* returns whether key was in the set */
+    public boolean remove(int key) {
+        if (key == 0) {
+            if (!hasZero) {
+                return false;
+            }
+            hasZero = false;
+            size--;
+            return true;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (int k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                size--;
+                shiftKeys(pos);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* keep only the keys that are also in other */
+    public void retainAll(IntHashSet other) {
+        for (int key : toArray()) {
+            if (!other.contains(key)) {
+                remove(key);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        hasZero = false;
+        size = 0;
+    }
+
+    /* the keys in ascending order */
+    public int[] toArray() {
+        int[] result = new int[size];
+        int n = 0;
+        if (hasZero) {
+            result[n++] = 0;
+        }
+        for (int k : keys) {
+            if (k != 0) {
+                result[n++] = k;
+            }
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /* visit every key in table order, the set must not be changed meanwhile */
+    public void forEach(IntConsumer consumer) {
+        if (hasZero) {
+            consumer.accept(0);
+        }
+        for (int k : keys) {
+            if (k != 0) {
+                consumer.accept(k);
+            }
+        }
+    }
+
+    /* free slot pos, moving back the keys of the probe sequence behind it */
+    private void shiftKeys(int pos) {
+        while (true) {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            int k;
+            while (true) {
+                if ((k = keys[pos]) == 0) {
+                    keys[last] = 0;
+                    return;
+                }
+                if (Hashing.canShift(last, Hashing.mix(k) & mask, pos)) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+        }
+    }
+
+    private void allocate(int length) {
+        keys = new int[length];
+        mask = length - 1;
+        resizeAt = (int) (length * Hashing.LOAD_FACTOR);
+    }
+
+    private void rehash(int length) {
+        int[] oldKeys = keys;
+        allocate(length);
+        for (int k : oldKeys) {
+            if (k != 0) {
+                int pos = Hashing.mix(k) & mask;
+                while (keys[pos] != 0) {
+                    pos = (pos + 1) & mask;
+                }
+                keys[pos] = k;
+            }
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package utils.primitive;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * Map from int keys to objects in open-addressing arrays, so that a key is
+ * neither boxed into an Integer nor wrapped in an entry object.
+ *
+ * Note:
+ *      (1) collisions are resolved by linear probing, and a removal moves
+ *          the following keys back instead of leaving a tombstone.
+ *      (2) the key 0 marks free slots, its entry is kept aside.
+ *      (3) iteration follows the table, {@link #keys} gives the keys in
+ *          ascending order, e.g. to list entries by book_id.
+ *      (4) not thread-safe.
+ */
+public final class IntObjectHashMap<V> {
+
+    public interface Visitor<V> {
+        void visit(int key, V value);
+    }
+
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int resizeAt;
+    private int size;
+    private boolean hasZeroKey;
+    private V zeroValue;
+
+    public IntObjectHashMap() {
+        this(16);
+    }
+
+    public IntObjectHashMap(int expected) {
+        allocate(Hashing.tableLength(expected));
+    }
+
+    public V get(int key) {
+        if (key == 0) {
+            return zeroValue;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (int k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                return value(pos);
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(int key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (int k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* returns the previous value of key, or null */
+    public V put(int key, V value) {
+        if (key == 0) {
+            V old = zeroValue;
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return old;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (int k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                V old = value(pos);
+                values[pos] = value;
+                return old;
+            }
+        }
+        keys[pos] = key;
+        values[pos] = value;
+        if (++size > resizeAt) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    public V computeIfAbsent(int key, IntFunction<V> factory) {
+        V value = get(key);
+        if (value == null) {
+            value = factory.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    /* returns the removed value of key, or null */
+    public V remove(int key) {
+        if (key == 0) {
+            V old = zeroValue;
+            if (hasZeroKey) {
+                hasZeroKey = false;
+                zeroValue = null;
+                size--;
+            }
+            return old;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (int k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                V old = value(pos);
+                size--;
+                shiftKeys(pos);
+                return old;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        hasZeroKey = false;
+        zeroValue = null;
+        size = 0;
+    }
+
+    /* the keys in ascending order */
+    public int[] keys() {
+        int[] result = new int[size];
+        int n = 0;
+        if (hasZeroKey) {
+            result[n++] = 0;
+        }
+        for (int k : keys) {
+            if (k != 0) {
+                result[n++] = k;
+            }
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /* visit every entry in table order, the map must not be changed meanwhile */
+    public void forEach(Visitor<? super V> visitor) {
+        if (hasZeroKey) {
+            visitor.visit(0, zeroValue);
+        }
+        for (int pos = 0; pos < keys.length; pos++) {
+            if (keys[pos] != 0) {
+                visitor.visit(keys[pos], value(pos));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(int pos) {
+        return (V) values[pos];
+    }
+
+    /* free slot pos, moving back the keys of the probe sequence behind it */
+    private void shiftKeys(int pos) {
+        while (true) {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            int k;
+            while (true) {
+                if ((k = keys[pos]) == 0) {
+                    keys[last] = 0;
+                    values[last] = null;
+                    return;
+                }
+                if (Hashing.canShift(last, Hashing.mix(k) & mask, pos)) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+            values[last] = values[pos];
+        }
+    }
+
+    private void allocate(int length) {
+        keys = new int[length];
+        values = new Object[length];
+        mask = length - 1;
+        resizeAt = (int) (length * Hashing.LOAD_FACTOR);
+    }
+
+    private void rehash(int length) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            int k = oldKeys[i];
+            if (k != 0) {
+                int pos = Hashing.mix(k) & mask;
+                while (keys[pos] != 0) {
+                    pos = (pos + 1) & mask;
+                }
+                keys[pos] = k;
+                values[pos] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package utils.primitive;
+
+import java.util.Arrays;
+
+/**
+ * Map from long keys to int values in open-addressing arrays, e.g. for ids
+ * by a hash. works like {@link IntObjectHashMap}, the value of a missing
+ * key reads as 0.
+ */
+public final class LongIntHashMap {
+
+    public interface Visitor {
+        void visit(long key, int value);
+    }
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int resizeAt;
+    private int size;
+    private boolean hasZeroKey;
+    private int zeroValue;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expected) {
+        allocate(Hashing.tableLength(expected));
+    }
+
+    /* the value of key, 0 if it is missing */
+    public int get(long key) {
+        return getOrDefault(key, 0);
+    }
+
+    public int getOrDefault(long key, int defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (long k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                return values[pos];
+            }
+        }
+        return defaultValue;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (long k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* returns the previous value of key, 0 if it was missing */
+    public int put(long key, int value) {
+        if (key == 0) {
+            int old = hasZeroKey ? zeroValue : 0;
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return old;
+        }
+        int pos = find(key);
+        if (keys[pos] == key) {
+            int old = values[pos];
+            values[pos] = value;
+            return old;
+        }
+        insert(pos, key, value);
+        return 0;
+    }
+
+    /* add delta to the value of key, a missing key starts at 0, returns the new value */
+    public int addTo(long key, int delta) {
+        if (key == 0) {
+            put(0, get(0) + delta);
+            return zeroValue;
+        }
+        int pos = find(key);
+        if (keys[pos] == key) {
+            return values[pos] += delta;
+        }
+        insert(pos, key, delta);
+        return delta;
+    }
+
+    /* returns the removed value of key, 0 if it was missing */
+    public int remove(long key) {
+        if (key == 0) {
+            int old = hasZeroKey ? zeroValue : 0;
+            if (hasZeroKey) {
+                hasZeroKey = false;
+                zeroValue = 0;
+                size--;
+            }
+            return old;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (long k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                int old = values[pos];
+                size--;
+                shiftKeys(pos);
+                return old;
+            }
+        }
+        return 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        hasZeroKey = false;
+        zeroValue = 0;
+        size = 0;
+    }
+
+    /* the keys in ascending order */
+    public long[] keys() {
+        long[] result = new long[size];
+        int n = 0;
+        if (hasZeroKey) {
+            result[n++] = 0;
+        }
+        for (long k : keys) {
+            if (k != 0) {
+                result[n++] = k;
+            }
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /* visit every entry in table order, the map must not be changed meanwhile */
+    public void forEach(Visitor visitor) {
+        if (hasZeroKey) {
+            visitor.visit(0, zeroValue);
+        }
+        for (int pos = 0; pos < keys.length; pos++) {
+            if (keys[pos] != 0) {
+                visitor.visit(keys[pos], values[pos]);
+            }
+        }
+    }
+
+    /* the slot of key, or the free slot it would take */
+    private int find(long key) {
+        int pos = Hashing.mix(key) & mask;
+        for (long k; (k = keys[pos]) != 0 && k != key; ) {
+            pos = (pos + 1) & mask;
+        }
+        return pos;
+    }
+
+    private void insert(int pos, long key, int value) {
+        keys[pos] = key;
+        values[pos] = value;
+        if (++size > resizeAt) {
+            rehash(keys.length * 2);
+        }
+    }
+
+    /* free slot pos, moving back the keys of the probe sequence behind it */
+    private void shiftKeys(int pos) {
+        while (true) {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            long k;
+            while (true) {
+                if ((k = keys[pos]) == 0) {
+                    keys[last] = 0;
+                    return;
+                }
+                if (Hashing.canShift(last, Hashing.mix(k) & mask, pos)) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+            values[last] = values[pos];
+        }
+    }
+
+    private void allocate(int length) {
+        keys = new long[length];
+        values = new int[length];
+        mask = length - 1;
+        resizeAt = (int) (length * Hashing.LOAD_FACTOR);
+    }
+
+    private void rehash(int length) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long k = oldKeys[i];
+            if (k != 0) {
+                int pos = Hashing.mix(k) & mask;
+                while (keys[pos] != 0) {
+                    pos = (pos + 1) & mask;
+                }
+                keys[pos] = k;
+                values[pos] = oldValues[i];
+            }
+        }
+    }
+}
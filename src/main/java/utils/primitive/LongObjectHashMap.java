@@ -0,0 +1,212 @@
+package utils.primitive;
+
+import java.util.Arrays;
+import java.util.function.LongFunction;
+
+/**
+ * Map from long keys to objects in open-addressing arrays, e.g. for values
+ * by a packed key. works like {@link IntObjectHashMap}, no key is boxed
+ * into a Long.
+ */
+public final class LongObjectHashMap<V> {
+
+    public interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int resizeAt;
+    private int size;
+    private boolean hasZeroKey;
+    private V zeroValue;
+
+    public LongObjectHashMap() {
+        this(16);
+    }
+
+    public LongObjectHashMap(int expected) {
+        allocate(Hashing.tableLength(expected));
+    }
+
+    public V get(long key) {
+        if (key == 0) {
+            return zeroValue;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (long k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                return value(pos);
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (long k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* returns the previous value of key, or null */
+    public V put(long key, V value) {
+        if (key == 0) {
+            V old = zeroValue;
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return old;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (long k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                V old = value(pos);
+                values[pos] = value;
+                return old;
+            }
+        }
+        keys[pos] = key;
+        values[pos] = value;
+        if (++size > resizeAt) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    public V computeIfAbsent(long key, LongFunction<V> factory) {
+        V value = get(key);
+        if (value == null) {
+            value = factory.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    /* returns the removed value of key, or null */
+    public V remove(long key) {
+        if (key == 0) {
+            V old = zeroValue;
+            if (hasZeroKey) {
+                hasZeroKey = false;
+                zeroValue = null;
+                size--;
+            }
+            return old;
+        }
+        int pos = Hashing.mix(key) & mask;
+        for (long k; (k = keys[pos]) != 0; pos = (pos + 1) & mask) {
+            if (k == key) {
+                V old = value(pos);
+                size--;
+                shiftKeys(pos);
+                return old;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        hasZeroKey = false;
+        zeroValue = null;
+        size = 0;
+    }
+
+    /* the keys in ascending order */
+    public long[] keys() {
+        long[] result = new long[size];
+        int n = 0;
+        if (hasZeroKey) {
+            result[n++] = 0;
+        }
+        for (long k : keys) {
+            if (k != 0) {
+                result[n++] = k;
+            }
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /* visit every entry in table order, the map must not be changed meanwhile */
+    public void forEach(Visitor<? super V> visitor) {
+        if (hasZeroKey) {
+            visitor.visit(0, zeroValue);
+        }
+        for (int pos = 0; pos < keys.length; pos++) {
+            if (keys[pos] != 0) {
+                visitor.visit(keys[pos], value(pos));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(int pos) {
+        return (V) values[pos];
+    }
+
+    /* free slot pos, moving back the keys of the probe sequence behind it */
+    private void shiftKeys(int pos) {
+        while (true) {
+            int last = pos;
+            pos = (pos + 1) & mask;
+            long k;
+            while (true) {
+                if ((k = keys[pos]) == 0) {
+                    keys[last] = 0;
+                    values[last] = null;
+                    return;
+                }
+                if (Hashing.canShift(last, Hashing.mix(k) & mask, pos)) {
+                    break;
+                }
+                pos = (pos + 1) & mask;
+            }
+            keys[last] = k;
+            values[last] = values[pos];
+        }
+    }
+
+    private void allocate(int length) {
+        keys = new long[length];
+        values = new Object[length];
+        mask = length - 1;
+        resizeAt = (int) (length * Hashing.LOAD_FACTOR);
+    }
+
+    private void rehash(int length) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long k = oldKeys[i];
+            if (k != 0) {
+                int pos = Hashing.mix(k) & mask;
+                while (keys[pos] != 0) {
+                    pos = (pos + 1) & mask;
+                }
+                keys[pos] = k;
+                values[pos] = oldValues[i];
+            }
+        }
+    }
+}
@@ -1,3 +1,4 @@
+drop table if exists `active_loan`;
 drop table if exists `borrow`;
 drop table if exists `card`;
 drop table if exists `book`;
@@ -33,4 +34,19 @@ create table `borrow` (
   primary key (`card_id`, `book_id`, `borrow_time`),
   foreign key (`card_id`) references `card`(`card_id`) on delete cascade on update cascade,
   foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade
-) engine=innodb charset=utf8mb4;
\ No newline at end of file
+) engine=innodb charset=utf8mb4;
+
+create table `active_loan` (
+  `card_id` int not null,
+  `book_id` int not null,
+  `borrow_time` bigint not null,
+  primary key (`card_id`, `book_id`),
+  foreign key (`card_id`) references `card`(`card_id`) on delete cascade on update cascade,
+  foreign key (`book_id`) references `book`(`book_id`) on delete cascade on update cascade
+) engine=innodb charset=utf8mb4;
+
+create index `idx_borrow_card_time` on `borrow` (`card_id`, `borrow_time`);
+create index `idx_borrow_book` on `borrow` (`book_id`);
+create index `idx_book_price` on `book` (`price`);
+create index `idx_book_publish_year` on `book` (`publish_year`);
+create index `idx_active_loan_book` on `active_loan` (`book_id`);
\ No newline at end of file
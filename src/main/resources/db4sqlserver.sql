@@ -1,3 +1,4 @@
+IF OBJECT_ID('dbo.active_loan', 'U') IS NOT NULL DROP TABLE dbo.active_loan;
 IF OBJECT_ID('dbo.borrow', 'U') IS NOT NULL DROP TABLE dbo.borrow;
 IF OBJECT_ID('dbo.book', 'U') IS NOT NULL DROP TABLE dbo.book;
 IF OBJECT_ID('dbo.card', 'U') IS NOT NULL DROP TABLE dbo.card;
@@ -33,4 +34,19 @@ create table borrow (
     primary key (card_id, book_id, borrow_time),
     foreign key (card_id) references card(card_id) on delete cascade on update cascade,
     foreign key (book_id) references book(book_id) on delete cascade on update cascade
-);
\ No newline at end of file
+);
+
+create table active_loan (
+    card_id int not null,
+    book_id int not null,
+    borrow_time bigint not null,
+    primary key (card_id, book_id),
+    foreign key (card_id) references card(card_id) on delete cascade on update cascade,
+    foreign key (book_id) references book(book_id) on delete cascade on update cascade
+);
+
+create index idx_borrow_card_time on borrow (card_id, borrow_time);
+create index idx_borrow_book on borrow (book_id);
+create index idx_book_price on book (price);
+create index idx_book_publish_year on book (publish_year);
+create index idx_active_loan_book on active_loan (book_id);
\ No newline at end of file
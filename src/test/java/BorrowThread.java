@@ -34,11 +34,8 @@ public class BorrowThread extends Thread {
     }
 
     public static void acquireAll() {
-        try {
-            semaphore.acquire(nThreads);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+        // the threads of an earlier run keep the permits they were released
+        semaphore.drainPermits();
     }
 
     public static void releaseAll() {
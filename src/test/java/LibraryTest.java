@@ -6,14 +6,36 @@ import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 import queries.*;
+import utils.BookCache;
 import utils.ConnectConfig;
+import utils.DBInitializer;
 import utils.DatabaseConnector;
+import utils.IndexDefinition;
 import utils.RandomData;
+import utils.ResultCache;
+import utils.WriteAheadLog;
+import utils.primitive.IntHashSet;
+import utils.primitive.IntIntHashMap;
+import utils.primitive.IntObjectHashMap;
+import utils.primitive.LongIntHashMap;
+import utils.primitive.LongLongHashMap;
+import utils.primitive.LongObjectHashMap;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -38,7 +60,7 @@ public class LibraryTest {
         try {
             // connect to database
             connector = new DatabaseConnector(connectConfig);
-            library = new LibraryManagementSystemImpl(connector);
+            library = LibraryManagementSystem.create(connector);
             System.out.println("Successfully init class BookTest.");
         } catch (Exception e) {
             e.printStackTrace();
@@ -166,6 +188,97 @@ public class LibraryTest {
         }
     }
 
+    @Test
+    public void migrateDatabaseTest() {
+        /* the tables are recreated through SQL below */
+        Assume.assumeFalse(connectConfig.getType().isInMemory());
+        /* a reset database already has every index */
+        ApiResult result = library.migrateDatabase();
+        Assert.assertTrue(result.message, result.ok);
+        Assert.assertTrue(((List<?>) result.payload).isEmpty());
+        /* recreate the tables the way older versions did, with their index on open borrows & without active loans */
+        DBInitializer initializer = connectConfig.getType().getDbInitializer();
+        try (Connection conn = connector.getConn(); Statement stmt = conn.createStatement()) {
+            stmt.addBatch(initializer.sqlDropActiveLoan());
+            stmt.addBatch(initializer.sqlDropBorrow());
+            stmt.addBatch(initializer.sqlDropBook());
+            stmt.addBatch(initializer.sqlDropCard());
+            stmt.addBatch(initializer.sqlCreateCard());
+            stmt.addBatch(initializer.sqlCreateBook());
+            stmt.addBatch(initializer.sqlCreateBorrow());
+            for (IndexDefinition index : DBInitializer.RETIRED_INDEXES) {
+                stmt.addBatch(initializer.sqlCreateIndex(index));
+            }
+            stmt.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Assert.fail();
+        }
+        /* borrow records of older versions, one returned & one not */
+        MyLibrary my = MyLibrary.createLibrary(library, 100, 10, 0);
+        Book book = my.books.get(0);
+        Card card = my.cards.get(0);
+        try (Connection conn = connector.getConn(); Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("INSERT INTO borrow (card_id, book_id, borrow_time, return_time) VALUES (" +
+                    card.getCardId() + ", " + book.getBookId() + ", 1000, 2000), (" +
+                    card.getCardId() + ", " + book.getBookId() + ", 3000, 0)");
+            conn.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Assert.fail();
+        }
+        /* the indexes & active loans are created with the data in place */
+        result = library.migrateDatabase();
+        Assert.assertTrue(result.message, result.ok);
+        Assert.assertEquals(DBInitializer.INDEXES.size() + 1, ((List<?>) result.payload).size());
+        Assert.assertTrue(((List<?>) result.payload).contains("active_loan"));
+        /* the retired index is dropped once its replacement exists */
+        try (Connection conn = connector.getConn()) {
+            for (IndexDefinition index : DBInitializer.RETIRED_INDEXES) {
+                PreparedStatement stmt = conn.prepareStatement(initializer.sqlIndexExists());
+                stmt.setString(1, index.getTable());
+                stmt.setString(2, index.getName());
+                Assert.assertFalse(index.getName(), stmt.executeQuery().next());
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Assert.fail();
+        }
+        /* an open borrow record left behind, e.g. by a move that failed after the table was created, is moved by the next migration */
+        Card other = my.cards.get(1);
+        try (Connection conn = connector.getConn(); Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("INSERT INTO borrow (card_id, book_id, borrow_time, return_time) VALUES (" +
+                    other.getCardId() + ", " + book.getBookId() + ", 3500, 0)");
+            conn.commit();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            Assert.fail();
+        }
+        result = library.migrateDatabase();
+        Assert.assertTrue(((List<?>) result.payload).isEmpty());
+        List<BorrowHistories.Item> otherItems = ((BorrowHistories) library.showBorrowHistory(other.getCardId()).payload).getItems();
+        Assert.assertEquals(1, otherItems.size());
+        Assert.assertEquals(0, otherItems.get(0).getReturnTime());
+        ApiResult queryResult = library.queryBook(new BookQueryConditions());
+        Assert.assertEquals(my.nBooks(), ((BookQueryResults) queryResult.payload).getCount());
+        /* the open borrow carried over */
+        Borrow open = new Borrow(book, card);
+        open.setBorrowTime(4000);
+        Assert.assertFalse(library.borrowBook(open).ok);
+        Assert.assertFalse(library.removeBook(book.getBookId()).ok);
+        List<BorrowHistories.Item> openItems = ((BorrowHistories) library.showBorrowHistory(card.getCardId()).payload).getItems();
+        Assert.assertEquals(2, openItems.size());
+        Assert.assertEquals(0, openItems.get(0).getReturnTime());
+        open.setReturnTime(5000);
+        Assert.assertTrue(library.returnBook(open).ok);
+        List<BorrowHistories.Item> items = ((BorrowHistories) library.showBorrowHistory(card.getCardId()).payload).getItems();
+        Assert.assertEquals(2, items.size());
+        Assert.assertEquals(5000, items.get(0).getReturnTime());
+        Assert.assertEquals(2000, items.get(1).getReturnTime());
+    }
+
     @Test
     public void incBookStockTest() {
         /* simply insert some books to database */
@@ -179,6 +292,8 @@ public class LibraryTest {
             bookIds.add(book.getBookId());
         }
         Assert.assertEquals(bookSet.size(), bookIds.size());
+        /* cache the full listing, it must not be served after the stock changes below */
+        Assert.assertTrue(library.queryBook(new BookQueryConditions()).ok);
         /* corner case: invalid book id */
         Assert.assertFalse(library.incBookStock(-1, 6).ok);
         int k = bookSet.size() + 1;
@@ -205,6 +320,32 @@ public class LibraryTest {
                 Assert.assertFalse(library.incBookStock(book.getBookId(), deltaStock).ok);
             }
         }
+        /* apply some manifests in one call */
+        for (int i = 0; i < 100; i++) {
+            Map<Integer, Integer> manifest = new HashMap<>();
+            boolean valid = true;
+            for (int j = 0; j < 5; j++) {
+                Book book = bookList.get(new Random().nextInt(bookList.size()));
+                int deltaStock = RandomUtils.nextInt(0, 24) - 8;
+                manifest.put(book.getBookId(), deltaStock);
+            }
+            for (Book book : bookList) {
+                if (manifest.containsKey(book.getBookId()) && book.getStock() + manifest.get(book.getBookId()) < 0) {
+                    valid = false;
+                }
+            }
+            Assert.assertEquals(valid, library.incBookStock(manifest).ok);
+            if (valid) {
+                for (Book book : bookList) {
+                    book.setStock(book.getStock() + manifest.getOrDefault(book.getBookId(), 0));
+                }
+            }
+        }
+        /* a manifest with an invalid book id changes nothing */
+        Map<Integer, Integer> invalidManifest = new HashMap<>();
+        invalidManifest.put(bookList.get(0).getBookId(), 1);
+        invalidManifest.put(k, 1);
+        Assert.assertFalse(library.incBookStock(invalidManifest).ok);
         /* use query interface to check correctness */
         bookList.sort(Comparator.comparingInt(Book::getBookId));
         ApiResult queryResult = library.queryBook(new BookQueryConditions());
@@ -258,6 +399,48 @@ public class LibraryTest {
         }
     }
 
+    @Test
+    public void importBooksTest() {
+        /* simply generate some books */
+        Set<Book> bookSet = new HashSet<>();
+        while (bookSet.size() < 1000) {
+            bookSet.add(RandomData.randomBook());
+        }
+        List<Book> bookList = new ArrayList<>(bookSet);
+        /* a duplicate in the last chunk rolls back everything in atomic mode */
+        List<Book> withDuplicate = new ArrayList<>(bookList);
+        withDuplicate.add(bookList.get(0).clone());
+        ApiResult atomicResult = library.importBooks(withDuplicate.iterator(), 64, true);
+        Assert.assertFalse(atomicResult.ok);
+        Assert.assertEquals(0, ((IngestResult) atomicResult.payload).getRows());
+        ApiResult queryResult1 = library.queryBook(new BookQueryConditions());
+        Assert.assertTrue(queryResult1.ok);
+        Assert.assertEquals(0, ((BookQueryResults) queryResult1.payload).getCount());
+        /* only the failed chunk is rolled back when committing per chunk */
+        List<Book> firstPart = bookList.subList(0, 640);
+        List<Book> secondPart = new ArrayList<>(bookList.subList(640, bookList.size()));
+        secondPart.add(0, bookList.get(0).clone());
+        Assert.assertTrue(library.importBooks(firstPart.iterator(), 64, false).ok);
+        ApiResult chunkResult = library.importBooks(secondPart.iterator(), 64, false);
+        Assert.assertFalse(chunkResult.ok);
+        Assert.assertEquals(0, ((IngestResult) chunkResult.payload).getRows());
+        secondPart.remove(0);
+        ApiResult importResult = library.importBooks(secondPart.stream().iterator(), 64, false);
+        Assert.assertTrue(importResult.ok);
+        Assert.assertEquals(secondPart.size(), ((IngestResult) importResult.payload).getRows());
+        /* compare results */
+        ApiResult queryResult2 = library.queryBook(new BookQueryConditions());
+        Assert.assertTrue(queryResult2.ok);
+        BookQueryResults selectedResults2 = (BookQueryResults) queryResult2.payload;
+        Assert.assertEquals(bookList.size(), selectedResults2.getCount());
+        bookList.sort(Comparator.comparingInt(Book::getBookId));
+        for (int i = 0; i < bookList.size(); i++) {
+            Book o1 = bookList.get(i);
+            Book o2 = selectedResults2.getResults().get(i);
+            Assert.assertEquals(o1.toString(), o2.toString());
+        }
+    }
+
     @Test
     public void removeBookTest() {
         /* simply insert some data to database */
@@ -269,6 +452,13 @@ public class LibraryTest {
         borrow.resetBorrowTime();
         Assert.assertTrue(library.borrowBook(borrow).ok);
         Assert.assertFalse(library.removeBook(my.books.get(0).getBookId()).ok);
+        /* the book is looked up from the book cache this time */
+        if (library instanceof LibraryManagementSystemImpl) {
+            BookCache bookCache = ((LibraryManagementSystemImpl) library).getBookCache();
+            long hits = bookCache.getHits();
+            Assert.assertFalse(library.removeBook(my.books.get(0).getBookId()).ok);
+            Assert.assertEquals(hits + 1, bookCache.getHits());
+        }
         borrow.resetReturnTime();
         Assert.assertTrue(library.returnBook(borrow).ok);
         Assert.assertTrue(library.removeBook(my.books.get(0).getBookId()).ok);
@@ -295,6 +485,13 @@ public class LibraryTest {
             Book o2 = selectedResults1.getResults().get(i);
             Assert.assertEquals(o1.toString(), o2.toString());
         }
+        /* equal categories, presses & authors are one shared string */
+        Map<String, String> seen = new HashMap<>();
+        for (Book book : selectedResults1.getResults()) {
+            for (String value : Arrays.asList(book.getCategory(), book.getPress(), book.getAuthor())) {
+                Assert.assertSame(seen.computeIfAbsent(value, v -> v), value);
+            }
+        }
     }
 
     @Test
@@ -308,6 +505,10 @@ public class LibraryTest {
         for (Book book : bookList) {
             Assert.assertTrue(library.storeBook(book).ok);
         }
+        /* a fuzzy query loads the search index before the books change */
+        BookQueryConditions titleCondition = new BookQueryConditions();
+        titleCondition.setTitle(bookList.get(0).getTitle());
+        Assert.assertTrue(library.queryBook(titleCondition).ok);
         /* randomly change books */
         for (Book book : bookList) {
             // remove old book from book set
@@ -355,6 +556,17 @@ public class LibraryTest {
             Book o2 = selectedResults.getResults().get(i);
             Assert.assertEquals(o1.toString(), o2.toString());
         }
+        /* books should be found by their new title, press & author */
+        for (Book book : bookList) {
+            BookQueryConditions c = new BookQueryConditions();
+            c.setTitle(book.getTitle());
+            c.setPress(book.getPress());
+            c.setAuthor(book.getAuthor());
+            queryResult = library.queryBook(c);
+            Assert.assertTrue(queryResult.ok);
+            Assert.assertTrue(((BookQueryResults) queryResult.payload).getResults().stream()
+                    .anyMatch(b -> b.getBookId() == book.getBookId()));
+        }
     }
 
     @Test
@@ -441,6 +653,153 @@ public class LibraryTest {
                 Book o2 = bookResults.getResults().get(i);
                 Assert.assertEquals(o1.toString(), o2.toString());
             }
+            /* the same query again is answered by the query cache */
+            ApiResult cachedResult = library.queryBook(queryCondition);
+            Assert.assertTrue(cachedResult.ok);
+            if (library instanceof LibraryManagementSystemImpl && connectConfig.getQueryCacheRows() > 0) {
+                ResultCache<String, ?> queryCache = ((LibraryManagementSystemImpl) library).getQueryCache();
+                long hits = queryCache.getHits();
+                cachedResult = library.queryBook(queryCondition);
+                Assert.assertTrue(cachedResult.ok);
+                Assert.assertEquals(hits + 1, queryCache.getHits());
+            }
+            for (int i = 0; i < expectedResults.size(); i++) {
+                Assert.assertEquals(expectedResults.get(i).toString(),
+                        ((BookQueryResults) cachedResult.payload).getResults().get(i).toString());
+            }
+            /* a projected query only fills in the requested columns */
+            queryCondition.setProjection(EnumSet.of(Book.SortColumn.TITLE, Book.SortColumn.STOCK));
+            ApiResult projectedResult = library.queryBook(queryCondition);
+            queryCondition.setProjection(null);
+            Assert.assertTrue(projectedResult.ok);
+            BookRows rows = ((BookQueryResults) projectedResult.payload).getRows();
+            Assert.assertEquals(expectedResults.size(), rows.size());
+            for (int i = 0; i < expectedResults.size(); i++) {
+                Book o1 = expectedResults.get(i);
+                Assert.assertEquals(o1.getBookId(), rows.getInt(i, Book.SortColumn.BOOK_ID));
+                Assert.assertEquals(o1.getTitle(), rows.getString(i, Book.SortColumn.TITLE));
+                Assert.assertEquals(o1.getStock(), rows.getInt(i, Book.SortColumn.STOCK));
+                if (queryCondition.getSortBy() != Book.SortColumn.AUTHOR) {
+                    Assert.assertNull(rows.toBook(i).getAuthor());
+                }
+            }
+            /* only the first books are returned with a limit, from the database or from the cache */
+            int limit = RandomUtils.nextInt(1, 20);
+            queryCondition.setLimit(limit);
+            ApiResult limitedResult = library.queryBook(queryCondition);
+            queryCondition.setProjection(EnumSet.of(Book.SortColumn.TITLE));
+            ApiResult limitedRowsResult = library.queryBook(queryCondition);
+            queryCondition.setProjection(null);
+            queryCondition.setLimit(null);
+            Assert.assertTrue(limitedResult.ok);
+            Assert.assertTrue(limitedRowsResult.ok);
+            List<Book> limitedBooks = ((BookQueryResults) limitedResult.payload).getResults();
+            BookRows limitedRows = ((BookQueryResults) limitedRowsResult.payload).getRows();
+            Assert.assertEquals(Math.min(limit, expectedResults.size()), limitedBooks.size());
+            Assert.assertEquals(limitedBooks.size(), limitedRows.size());
+            for (int i = 0; i < limitedBooks.size(); i++) {
+                Assert.assertEquals(expectedResults.get(i).toString(), limitedBooks.get(i).toString());
+                Assert.assertEquals(expectedResults.get(i).getBookId(), limitedRows.getInt(i, Book.SortColumn.BOOK_ID));
+            }
+            /* re-sorted by a number from the cached results */
+            Book.SortColumn sortBy = queryCondition.getSortBy();
+            SortOrder sortOrder = queryCondition.getSortOrder();
+            queryCondition.setSortBy(Book.SortColumn.PRICE);
+            queryCondition.setSortOrder(SortOrder.DESC);
+            queryCondition.setLimit(limit);
+            limitedResult = library.queryBook(queryCondition);
+            List<Book> expectedByPrice = verifyQueryResult(my.books, queryCondition);
+            queryCondition.setSortBy(sortBy);
+            queryCondition.setSortOrder(sortOrder);
+            queryCondition.setLimit(null);
+            Assert.assertTrue(limitedResult.ok);
+            limitedBooks = ((BookQueryResults) limitedResult.payload).getResults();
+            Assert.assertEquals(Math.min(limit, expectedByPrice.size()), limitedBooks.size());
+            for (int i = 0; i < limitedBooks.size(); i++) {
+                Assert.assertEquals(expectedByPrice.get(i).toString(), limitedBooks.get(i).toString());
+            }
+            /* a limit must be positive */
+            for (int invalid : new int[]{0, -1}) {
+                queryCondition.setLimit(invalid);
+                ApiResult invalidResult = library.queryBook(queryCondition);
+                Assert.assertFalse(invalidResult.ok);
+                Assert.assertEquals("Limit must be positive.", invalidResult.message);
+                invalidResult = library.streamBooks(queryCondition);
+                Assert.assertFalse(invalidResult.ok);
+                Assert.assertEquals("Limit must be positive.", invalidResult.message);
+            }
+            queryCondition.setLimit(null);
+            /* the streamed results should be the same */
+            ApiResult streamResult = library.streamBooks(queryCondition);
+            Assert.assertTrue(streamResult.ok);
+            List<Book> streamedResults;
+            try (Stream<Book> stream = payloadStream(streamResult, Book.class)) {
+                streamedResults = stream.collect(Collectors.toList());
+            }
+            Assert.assertEquals(expectedResults.size(), streamedResults.size());
+            for (int i = 0; i < expectedResults.size(); i++) {
+                Assert.assertEquals(expectedResults.get(i).toString(), streamedResults.get(i).toString());
+            }
+            /* walk through the same results page by page */
+            queryCondition.setPageSize(RandomUtils.nextInt(1, 100));
+            List<Book> pagedResults = new ArrayList<>();
+            do {
+                ApiResult pageResult = library.queryBook(queryCondition);
+                Assert.assertTrue(pageResult.ok);
+                BookQueryResults page = (BookQueryResults) pageResult.payload;
+                Assert.assertTrue(page.getCount() <= queryCondition.getPageSize());
+                pagedResults.addAll(page.getResults());
+                queryCondition.setPageToken(page.getNextPageToken());
+            } while (queryCondition.getPageToken() != null);
+            Assert.assertEquals(expectedResults.size(), pagedResults.size());
+            for (int i = 0; i < expectedResults.size(); i++) {
+                Assert.assertEquals(expectedResults.get(i).toString(), pagedResults.get(i).toString());
+            }
+            /* a limit counts over all pages */
+            queryCondition.setPageSize(RandomUtils.nextInt(1, 10));
+            queryCondition.setLimit(RandomUtils.nextInt(1, 30));
+            pagedResults.clear();
+            do {
+                ApiResult pageResult = library.queryBook(queryCondition);
+                Assert.assertTrue(pageResult.ok);
+                BookQueryResults page = (BookQueryResults) pageResult.payload;
+                Assert.assertTrue(page.getCount() <= queryCondition.getPageSize());
+                pagedResults.addAll(page.getResults());
+                queryCondition.setPageToken(page.getNextPageToken());
+            } while (queryCondition.getPageToken() != null);
+            Assert.assertEquals(Math.min(queryCondition.getLimit(), expectedResults.size()), pagedResults.size());
+            for (int i = 0; i < pagedResults.size(); i++) {
+                Assert.assertEquals(expectedResults.get(i).toString(), pagedResults.get(i).toString());
+            }
+        }
+    }
+
+    @Test
+    public void facetBooksTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 500, 1, 0);
+        List<BookQueryConditions> queryConditions = new ArrayList<>();
+        queryConditions.add(new BookQueryConditions());
+        BookQueryConditions c = new BookQueryConditions();
+        c.setMinPublishYear(my.books.get(0).getPublishYear());
+        c.setMaxPrice(my.books.get(1).getPrice());
+        queryConditions.add(c);
+        c = new BookQueryConditions();
+        c.setCategory(my.books.get(2).getCategory());
+        queryConditions.add(c);
+        for (BookQueryConditions queryCondition : queryConditions) {
+            ApiResult result = library.facetBooks(queryCondition, BookFacet.CATEGORY, BookFacet.PUBLISH_YEAR);
+            Assert.assertTrue(result.message, result.ok);
+            BookFacets facets = (BookFacets) result.payload;
+            Assert.assertNull(facets.getBuckets(BookFacet.PRESS));
+            List<Book> expectedBooks = verifyQueryResult(my.books, queryCondition);
+            Map<Object, Long> expectedCategories = expectedBooks.stream()
+                    .collect(Collectors.groupingBy(Book::getCategory, Collectors.counting()));
+            Map<Object, Long> expectedYears = expectedBooks.stream()
+                    .collect(Collectors.groupingBy(Book::getPublishYear, Collectors.counting()));
+            Assert.assertEquals(expectedCategories, facets.getBuckets(BookFacet.CATEGORY).stream()
+                    .collect(Collectors.toMap(BookFacets.Bucket::getValue, BookFacets.Bucket::getCount)));
+            Assert.assertEquals(expectedYears, facets.getBuckets(BookFacet.PUBLISH_YEAR).stream()
+                    .collect(Collectors.toMap(BookFacets.Bucket::getValue, BookFacets.Bucket::getCount)));
         }
     }
 
@@ -581,7 +940,59 @@ public class LibraryTest {
                 BorrowHistories.Item o2 = histories.getItems().get(i);
                 Assert.assertEquals(o1.toString(), o2.toString());
             }
+            ApiResult streamResult = library.streamBorrowHistory(card.getCardId());
+            Assert.assertTrue(streamResult.ok);
+            try (Stream<BorrowHistories.Item> stream = payloadStream(streamResult, BorrowHistories.Item.class)) {
+                Assert.assertEquals(expectedList.stream().map(Object::toString).collect(Collectors.toList()),
+                        stream.map(Object::toString).collect(Collectors.toList()));
+            }
+        }
+        /* hot borrow & return statements should be prepared only once per connection */
+        if (library instanceof LibraryManagementSystemImpl && connectConfig.getStatementCacheSize() > 0) {
+            Assert.assertTrue(connector.getStatementCacheHits() > 10 * connector.getStatementCacheMisses());
+        }
+    }
+
+    @Test
+    public void borrowAndReturnBooksTest() {
+        MyLibrary my = MyLibrary.createLibrary(library, 5, 2, 0);
+        List<Integer> bookIds = my.books.stream().map(Book::getBookId).collect(Collectors.toList());
+        // one copy of each book, none of the last one
+        for (Book book : my.books) {
+            Assert.assertTrue(library.incBookStock(book.getBookId(), -book.getStock() + 1).ok);
         }
+        Assert.assertTrue(library.incBookStock(bookIds.get(4), -1).ok);
+        int c0 = my.cards.get(0).getCardId();
+        int c1 = my.cards.get(1).getCardId();
+        long time = System.currentTimeMillis();
+        /* nothing is borrowed if any book cannot be */
+        Assert.assertFalse(library.borrowBooks(c0, bookIds, time).ok);
+        Assert.assertFalse(library.borrowBooks(c0, Arrays.asList(bookIds.get(0), bookIds.get(0)), time).ok);
+        Assert.assertEquals(0, ((BorrowHistories) library.showBorrowHistory(c0).payload).getCount());
+        /* borrow 4 books at once, in any order */
+        List<Integer> borrowed = Arrays.asList(bookIds.get(3), bookIds.get(1), bookIds.get(0), bookIds.get(2));
+        Assert.assertTrue(library.borrowBooks(c0, borrowed, time).ok);
+        Assert.assertEquals(4, ((BorrowHistories) library.showBorrowHistory(c0).payload).getCount());
+        Borrow again = new Borrow(bookIds.get(0), c0);
+        again.resetBorrowTime();
+        Assert.assertFalse(library.borrowBook(again).ok);
+        Assert.assertFalse(library.borrowBooks(c1, bookIds.subList(0, 1), time).ok);
+        /* nothing is returned if any book cannot be */
+        Assert.assertFalse(library.returnBooks(c0, borrowed, time).ok);
+        Assert.assertFalse(library.returnBooks(c0, Arrays.asList(bookIds.get(0), bookIds.get(4)), time + 1).ok);
+        Assert.assertFalse(library.returnBooks(c1, borrowed, time + 1).ok);
+        Assert.assertTrue(library.returnBooks(c0, borrowed, time + 1).ok);
+        for (BorrowHistories.Item item : ((BorrowHistories) library.showBorrowHistory(c0).payload).getItems()) {
+            Assert.assertEquals(time + 1, item.getReturnTime());
+        }
+        Assert.assertFalse(library.returnBooks(c0, borrowed, time + 2).ok);
+        /* the copies are back */
+        Assert.assertTrue(library.borrowBooks(c1, borrowed, time + 3).ok);
+        /* any number of books, not only powers of two */
+        Assert.assertTrue(library.returnBooks(c1, borrowed.subList(0, 3), time + 4).ok);
+        Assert.assertFalse(library.borrowBooks(c0, borrowed, time + 5).ok);
+        Assert.assertTrue(library.borrowBooks(c0, borrowed.subList(0, 3), time + 5).ok);
+        Assert.assertFalse(library.returnBooks(c0, borrowed, time + 6).ok);
     }
 
     @Test
@@ -598,9 +1009,11 @@ public class LibraryTest {
             connector = new DatabaseConnector(connectConfig);
             Assert.assertTrue(connector.connect());
             connectors.add(connector);
-            libraries.add(new LibraryManagementSystemImpl(connector));
+            // an in-memory library cannot be shared through the database, so the threads share it directly
+            libraries.add(connectConfig.getType().isInMemory() ? library : LibraryManagementSystem.create(connector));
         }
         /* start all threads */
+        BorrowThread.successOps.set(0);
         List<BorrowThread> borrowThreads = new ArrayList<>();
         BorrowThread.acquireAll();
         for (int i = 0; i < nThreads; i++) {
@@ -628,6 +1041,85 @@ public class LibraryTest {
         }
     }
 
+    @Test
+    public void hotBookBorrowTest() {
+        int nThreads = BorrowThread.nThreads;
+        int stock = 5;
+        MyLibrary my = MyLibrary.createLibrary(library, 1, nThreads, 0);
+        Book book = my.books.get(0);
+        Assert.assertTrue(library.incBookStock(book.getBookId(), -book.getStock() + stock).ok);
+        BorrowAdmission admission = library instanceof LibraryManagementSystemImpl
+                ? ((LibraryManagementSystemImpl) library).getAdmission() : null;
+        /* all threads share one library, so their borrows are combined */
+        BorrowThread.successOps.set(0);
+        List<BorrowThread> borrowThreads = new ArrayList<>();
+        BorrowThread.acquireAll();
+        for (int i = 0; i < nThreads; i++) {
+            Borrow borrow = new Borrow(book, my.cards.get(i));
+            borrow.resetBorrowTime();
+            BorrowThread thd = new BorrowThread(i, library, borrow);
+            thd.start();
+            borrowThreads.add(thd);
+        }
+        BorrowThread.releaseAll();
+        for (BorrowThread thd : borrowThreads) {
+            try {
+                thd.join();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        /* exactly stock borrows succeed, each with its record */
+        Assert.assertEquals(stock, BorrowThread.successOps.get());
+        if (admission != null) {
+            // every borrow reached the database in a batch
+            Assert.assertEquals(nThreads, admission.getBatched());
+            Assert.assertTrue(admission.getBatches() >= 1 && admission.getBatches() <= admission.getBatched());
+            Assert.assertTrue(admission.getCombined() <= admission.getBatched());
+        }
+        int borrowed = 0;
+        List<Card> idle = new ArrayList<>();
+        for (Card card : my.cards) {
+            ApiResult result = library.showBorrowHistory(card.getCardId());
+            Assert.assertTrue(result.ok);
+            int count = ((BorrowHistories) result.payload).getCount();
+            borrowed += count;
+            if (count == 0) {
+                idle.add(card);
+            }
+        }
+        Assert.assertEquals(stock, borrowed);
+        BookQueryConditions conditions = new BookQueryConditions();
+        conditions.setCategory(book.getCategory());
+        conditions.setTitle(book.getTitle());
+        List<Book> found = ((BookQueryResults) library.queryBook(conditions).payload).getResults();
+        Assert.assertEquals(0, found.get(0).getStock());
+        /* out of stock now, until the stock is increased */
+        Borrow late = new Borrow(book, idle.get(0));
+        late.resetBorrowTime();
+        Assert.assertFalse(library.borrowBook(late).ok);
+        Assert.assertTrue(library.incBookStock(book.getBookId(), 1).ok);
+        Assert.assertTrue(library.borrowBook(late).ok);
+        if (admission != null) {
+            Assert.assertEquals(nThreads + 2, admission.getBatched());
+            /* a restock by another process is seen by the very next borrow */
+            Borrow other = new Borrow(book, idle.get(1));
+            other.resetBorrowTime();
+            Assert.assertFalse(library.borrowBook(other).ok);
+            DatabaseConnector another = new DatabaseConnector(connectConfig);
+            Assert.assertTrue(another.connect());
+            try (Connection conn = another.getConn(); Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("UPDATE book SET stock = 1 WHERE book_id = " + book.getBookId());
+                conn.commit();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                Assert.fail();
+            }
+            Assert.assertTrue(another.release());
+            Assert.assertTrue(library.borrowBook(other).ok);
+        }
+    }
+
     @Test
     public void registerAndShowAndRemoveCardTest() {
         /* simply insert N cards */
@@ -658,6 +1150,14 @@ public class LibraryTest {
             Assert.assertFalse(library.removeCard(dCard.getCardId()).ok);
             my.cards.remove(0);
         }
+        /* a removed card can be registered again, the others are still unique */
+        Card again = delCard.clone();
+        Assert.assertTrue(library.registerCard(again).ok);
+        Assert.assertNotEquals(delCard.getCardId(), again.getCardId());
+        my.cards.add(again);
+        for (Card card : my.cards) {
+            Assert.assertFalse(library.registerCard(card.clone()).ok);
+        }
         /* check cards */
         my.cards.sort(Comparator.comparingInt(Card::getCardId));
         ApiResult result = library.showCards();
@@ -671,6 +1171,307 @@ public class LibraryTest {
         }
     }
 
+    @Test
+    public void statementCacheTest() throws SQLException {
+        Assume.assumeFalse(connectConfig.getType().isInMemory());
+        String sql = "SELECT card_id FROM card WHERE card_id = ?";
+        PreparedStatement first;
+        try (Connection conn = connector.getConn()) {
+            first = conn.prepareStatement(sql);
+            // bound but never run, as by a caller that failed half way
+            first.setInt(1, 1);
+        }
+        if (connectConfig.getStatementCacheSize() == 0) {
+            /* without a cache the statements of a lease are closed when it ends */
+            Assert.assertTrue(first.isClosed());
+            return;
+        }
+        /* the cached statement comes back without the values bound by its last user */
+        try (Connection conn = connector.getConn()) {
+            PreparedStatement stmt = conn.prepareStatement(sql);
+            Assert.assertSame(first, stmt);
+            Assert.assertFalse(stmt.isClosed());
+            try {
+                stmt.executeQuery();
+                Assert.fail();
+            } catch (SQLException e) {
+                // no value for the parameter
+            }
+        }
+    }
+
+    @Test
+    public void memoryRecoveryTest() throws IOException {
+        Path dir = Files.createTempDirectory("library");
+        List<String> expected;
+        InMemoryLibraryManagementSystem memory = new InMemoryLibraryManagementSystem(dir, 0);
+        MyLibrary my = MyLibrary.createLibrary(memory, 50, 10, 30);
+        /* every change is replayed from the log after a restart */
+        Card card = new Card(0, "recovery", "test", Card.CardType.Student);
+        Assert.assertTrue(memory.registerCard(card).ok);
+        Assert.assertTrue(memory.removeCard(card.getCardId()).ok);
+        expected = dumpLibrary(memory, my);
+        memory.close();
+        memory = new InMemoryLibraryManagementSystem(dir, 0);
+        Assert.assertEquals(expected, dumpLibrary(memory, my));
+        /* after a snapshot only the changes after it are in the log */
+        memory.snapshot();
+        Card reader = my.cards.get(0);
+        List<Borrow> loans = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            Book b = my.books.get(i);
+            Assert.assertTrue(memory.incBookStock(b.getBookId(), 1).ok);
+            Borrow borrow = new Borrow(b, reader);
+            borrow.resetBorrowTime();
+            Assert.assertTrue(memory.borrowBook(borrow).ok);
+            loans.add(borrow);
+        }
+        Assert.assertTrue(memory.removeBook(my.books.get(0).getBookId()).ok);
+        expected = dumpLibrary(memory, my);
+        memory.close();
+        memory = new InMemoryLibraryManagementSystem(dir, 0);
+        Assert.assertEquals(expected, dumpLibrary(memory, my));
+        /* open loans are kept by a snapshot too */
+        memory.snapshot();
+        memory.close();
+        memory = new InMemoryLibraryManagementSystem(dir, 0);
+        Assert.assertEquals(expected, dumpLibrary(memory, my));
+        Assert.assertFalse(memory.borrowBook(loans.get(0)).ok);
+        loans.get(0).resetReturnTime();
+        Assert.assertTrue(memory.returnBook(loans.get(0)).ok);
+        /* ids of removed books are not handed out again */
+        Book book = RandomData.randomBook();
+        Assert.assertTrue(memory.storeBook(book).ok);
+        Assert.assertTrue(book.getBookId() > my.nBooks());
+        expected = dumpLibrary(memory, my);
+        memory.close();
+        /* a record torn by a crash is cut off */
+        Files.write(dir.resolve("library.wal"), new byte[]{0, 0, 1, 0, 1, 2, 3, 4, 42}, StandardOpenOption.APPEND);
+        memory = new InMemoryLibraryManagementSystem(dir, 0);
+        Assert.assertEquals(expected, dumpLibrary(memory, my));
+        Assert.assertTrue(memory.incBookStock(book.getBookId(), 1).ok);
+        /* chunks imported before a failing one are durable on their own */
+        List<Book> imported = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            imported.add(RandomData.randomBook());
+        }
+        imported.add(imported.get(0).clone());
+        ApiResult importResult = memory.importBooks(imported.iterator(), 8, false);
+        Assert.assertFalse(importResult.ok);
+        Assert.assertEquals(16, ((IngestResult) importResult.payload).getRows());
+        expected = dumpLibrary(memory, my);
+        memory.close();
+        memory = new InMemoryLibraryManagementSystem(dir, 0);
+        Assert.assertEquals(expected, dumpLibrary(memory, my));
+        memory.close();
+    }
+
+    @Test
+    public void primitiveCollectionsTest() {
+        /* random changes give the same maps as the boxed collections */
+        Random random = new Random(42);
+        Map<Integer, Integer> boxed = new HashMap<>();
+        Map<Integer, Integer> boxedObjects = new HashMap<>();
+        Set<Integer> boxedSet = new HashSet<>();
+        IntIntHashMap counts = new IntIntHashMap();
+        IntObjectHashMap<Integer> objects = new IntObjectHashMap<>();
+        IntHashSet set = new IntHashSet();
+        // long keys that differ in their high bits only
+        LongIntHashMap longCounts = new LongIntHashMap();
+        LongObjectHashMap<Integer> longObjects = new LongObjectHashMap<>();
+        // and long values beyond the int range
+        LongLongHashMap longTimes = new LongLongHashMap();
+        for (int i = 0; i < 200000; i++) {
+            // few keys, so that removals hit probe sequences, 0 included
+            int key = random.nextInt(2000) - 100;
+            long longKey = (long) key << 32;
+            switch (random.nextInt(4)) {
+                case 0:
+                    Assert.assertEquals(boxed.getOrDefault(key, 0).intValue(), counts.put(key, i));
+                    Assert.assertEquals(boxed.getOrDefault(key, 0) * (1L << 32), longTimes.put(longKey, i * (1L << 32)));
+                    Assert.assertEquals(boxed.getOrDefault(key, 0).intValue(), longCounts.put(longKey, i));
+                    boxed.put(key, i);
+                    Assert.assertEquals(boxedObjects.get(key), longObjects.put(longKey, i));
+                    Assert.assertEquals(boxedObjects.put(key, i), objects.put(key, i));
+                    Assert.assertEquals(boxedSet.add(key), set.add(key));
+                    break;
+                case 1:
+                    Assert.assertEquals(boxed.merge(key, 1, Integer::sum).intValue(), counts.addTo(key, 1));
+                    Assert.assertEquals(boxed.get(key).intValue(), longCounts.addTo(longKey, 1));
+                    Assert.assertEquals(boxed.get(key) * (1L << 32), longTimes.addTo(longKey, 1L << 32));
+                    Assert.assertEquals(boxedObjects.computeIfAbsent(key, k -> -k), objects.computeIfAbsent(key, k -> -k));
+                    Assert.assertEquals(objects.get(key), longObjects.computeIfAbsent(longKey, k -> (int) -(k >> 32)));
+                    break;
+                default:
+                    Assert.assertEquals(boxed.containsKey(key) ? boxed.get(key) : 0, longCounts.remove(longKey));
+                    Assert.assertEquals(boxed.getOrDefault(key, 0) * (1L << 32), longTimes.remove(longKey));
+                    Assert.assertEquals(boxed.containsKey(key) ? boxed.remove(key) : 0, counts.remove(key));
+                    Assert.assertEquals(boxedObjects.get(key), longObjects.remove(longKey));
+                    Assert.assertEquals(boxedObjects.remove(key), objects.remove(key));
+                    Assert.assertEquals(boxedSet.remove(key), set.remove(key));
+            }
+            Assert.assertEquals(boxed.size(), counts.size());
+            Assert.assertEquals(boxedObjects.size(), objects.size());
+            Assert.assertEquals(boxedSet.size(), set.size());
+            Assert.assertEquals(boxed.size(), longCounts.size());
+            Assert.assertEquals(boxed.size(), longTimes.size());
+            Assert.assertEquals(boxedObjects.size(), longObjects.size());
+        }
+        for (int key = -100; key < 1900; key++) {
+            Assert.assertEquals(boxed.containsKey(key), counts.containsKey(key));
+            Assert.assertEquals(boxed.getOrDefault(key, 0).intValue(), counts.get(key));
+            Assert.assertEquals(boxedObjects.get(key), objects.get(key));
+            Assert.assertEquals(boxedSet.contains(key), set.contains(key));
+            Assert.assertEquals(boxed.getOrDefault(key, 0).intValue(), longCounts.get((long) key << 32));
+            Assert.assertEquals(boxed.containsKey(key), longTimes.containsKey((long) key << 32));
+            Assert.assertEquals(boxed.getOrDefault(key, 0) * (1L << 32), longTimes.get((long) key << 32));
+            Assert.assertEquals(boxedObjects.get(key), longObjects.get((long) key << 32));
+        }
+        // keys come out ascending, like a TreeMap
+        Assert.assertArrayEquals(new TreeSet<>(boxed.keySet()).stream().mapToInt(k -> k).toArray(), counts.keys());
+        Assert.assertArrayEquals(new TreeSet<>(boxedObjects.keySet()).stream().mapToInt(k -> k).toArray(), objects.keys());
+        Assert.assertArrayEquals(new TreeSet<>(boxedSet).stream().mapToInt(k -> k).toArray(), set.toArray());
+        Assert.assertArrayEquals(new TreeSet<>(boxed.keySet()).stream().mapToLong(k -> (long) k << 32).toArray(),
+                longCounts.keys());
+        Assert.assertArrayEquals(new TreeSet<>(boxedObjects.keySet()).stream().mapToLong(k -> (long) k << 32).toArray(),
+                longObjects.keys());
+        /* the book cache stays within its capacity */
+        BookCache cache = new BookCache(64);
+        for (int bookId = 1; bookId <= 1000; bookId++) {
+            Book book = RandomData.randomBook();
+            book.setBookId(bookId);
+            cache.put(book, cache.stamp(bookId));
+            Assert.assertEquals(book.toString(), cache.get(bookId).toString());
+        }
+        Assert.assertTrue(cache.size() <= 64);
+        Assert.assertEquals(1000 - cache.size(), cache.getEvictions());
+        /* a million keys survive every rehash on the way, whatever bits they differ in */
+        int n = 1000000;
+        IntIntHashMap primitiveCounts = new IntIntHashMap();
+        LongIntHashMap longHeads = new LongIntHashMap();
+        for (int i = 1; i <= n; i++) {
+            primitiveCounts.put(i * 7, i);
+            longHeads.put((long) i << 40 | i, i);
+        }
+        Assert.assertEquals(n, primitiveCounts.size());
+        Assert.assertEquals(n, longHeads.size());
+        for (int i = 1; i <= n; i++) {
+            Assert.assertEquals(i, primitiveCounts.get(i * 7));
+            Assert.assertEquals(i, longHeads.get((long) i << 40 | i));
+        }
+    }
+
+    /* a benchmark rather than a test, heap use depends on the collector, so it only reports. run by hand */
+    @Ignore
+    @Test
+    public void primitiveFootprintBenchmark() {
+        int n = 1000000;
+        long before = usedHeap();
+        Map<Integer, Integer> boxedCounts = new HashMap<>();
+        for (int i = 1; i <= n; i++) {
+            boxedCounts.put(i * 7, i);
+        }
+        long boxedBytes = usedHeap() - before;
+        before = usedHeap();
+        IntIntHashMap primitiveCounts = new IntIntHashMap();
+        for (int i = 1; i <= n; i++) {
+            primitiveCounts.put(i * 7, i);
+        }
+        long primitiveBytes = usedHeap() - before;
+        System.out.printf("%d int counters: HashMap<Integer, Integer> %.1f MB, IntIntHashMap %.1f MB\n",
+                n, boxedBytes / 1e6, primitiveBytes / 1e6);
+        before = usedHeap();
+        Map<Long, Integer> boxedHeads = new HashMap<>();
+        for (int i = 1; i <= n; i++) {
+            boxedHeads.put((long) i << 40 | i, i);
+        }
+        boxedBytes = usedHeap() - before;
+        before = usedHeap();
+        LongIntHashMap primitiveHeads = new LongIntHashMap();
+        for (int i = 1; i <= n; i++) {
+            primitiveHeads.put((long) i << 40 | i, i);
+        }
+        primitiveBytes = usedHeap() - before;
+        System.out.printf("%d key heads: HashMap<Long, Integer> %.1f MB, LongIntHashMap %.1f MB\n",
+                n, boxedBytes / 1e6, primitiveBytes / 1e6);
+        // keep every map reachable until it has been measured
+        System.out.println(boxedCounts.size() + primitiveCounts.size() + boxedHeads.size() + primitiveHeads.size());
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Test
+    public void writeAheadLogSyncTest() throws Exception {
+        Path dir = Files.createTempDirectory("wal");
+        WriteAheadLog log = new WriteAheadLog(dir);
+        log.recover(in -> { }, in -> { });
+        AtomicBoolean done = new AtomicBoolean();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        /* records synced while snapshots start new generations must be on disk */
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread writer = new Thread(() -> {
+                byte[] record = new byte[200];
+                try {
+                    while (!done.get()) {
+                        long generation = log.getGeneration();
+                        long position = log.append(record, record.length);
+                        log.sync(position);
+                        long synced = log.getSynced();
+                        long size = Files.size(dir.resolve("library.wal"));
+                        // a snapshot in between legitimately empties the log
+                        if (log.getGeneration() == generation) {
+                            Assert.assertTrue(position <= synced);
+                            Assert.assertTrue(synced <= size);
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (int i = 0; i < 200 && errors.isEmpty(); i++) {
+            log.snapshot(out -> { });
+            Thread.sleep(5);
+        }
+        done.set(true);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        log.close();
+        Assert.assertEquals(Collections.emptyList(), errors);
+    }
+
+    /* the stream returned in the payload, every element checked to be a T. closing it closes the payload */
+    private static <T> Stream<T> payloadStream(ApiResult result, Class<T> type) {
+        return ((Stream<?>) result.payload).map(type::cast);
+    }
+
+    /* books, cards & borrow histories of library as strings, for comparing libraries */
+    private List<String> dumpLibrary(LibraryManagementSystem library, MyLibrary my) {
+        List<String> dump = new ArrayList<>();
+        ApiResult books = library.queryBook(new BookQueryConditions());
+        Assert.assertTrue(books.ok);
+        ((BookQueryResults) books.payload).getResults().forEach(b -> dump.add(b.toString()));
+        ApiResult cards = library.showCards();
+        Assert.assertTrue(cards.ok);
+        ((CardList) cards.payload).getCards().forEach(c -> dump.add(c.toString()));
+        for (Card card : my.cards) {
+            ApiResult histories = library.showBorrowHistory(card.getCardId());
+            Assert.assertTrue(histories.ok);
+            ((BorrowHistories) histories.payload).getItems().forEach(i -> dump.add(i.toString()));
+        }
+        return dump;
+    }
+
     private List<Book> verifyQueryResult(List<Book> books, BookQueryConditions conditions) {
         Stream<Book> stream = books.stream();
         if (conditions.getCategory() != null) {